@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.utils;
+
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Applies deltas to the database and checks the rows and the data set version afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CtrlDeltaApplierTest {
+
+    /* far outside the ids of the bundled ctrls */
+    private static final int INSERTED_ID = 2000000001;
+    private static final int MOVED_ID = 2000000002;
+    private static final int DELETED_ID = 2000000003;
+
+    private DatabaseCtrls mDatabaseCtrls;
+    private int mBaseVersion;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabaseCtrls = DatabaseCtrlsTest.awaitDatabase();
+        mBaseVersion = mDatabaseCtrls.getDatasetVersion();
+        insertFixture(MOVED_ID, 48.1, 11.5);
+        insertFixture(DELETED_ID, 48.2, 11.6);
+    }
+
+    @After
+    public void tearDown() {
+        mDatabaseCtrls.getWritableDatabase().execSQL("DELETE FROM " + DatabaseCtrls.TABLE_CTRLS
+                + " WHERE id IN (?, ?, ?)", new Object[]{INSERTED_ID, MOVED_ID, DELETED_ID});
+        DatabaseCtrls.setDatasetVersion(mDatabaseCtrls.getWritableDatabase(), mBaseVersion);
+    }
+
+    @Test
+    public void appliesInsertsDeletesAndMoves() throws Exception {
+        int targetVersion = mBaseVersion + 1;
+        byte[] delta = delta(mBaseVersion, targetVersion);
+
+        assertEquals(targetVersion, new CtrlDeltaApplier(mDatabaseCtrls).apply(new ByteArrayInputStream(delta)));
+
+        assertEquals(targetVersion, mDatabaseCtrls.getDatasetVersion());
+        assertRow(INSERTED_ID, 47.5, 12.25, 80, "inserted");
+        assertRow(MOVED_ID, 48.15, 11.55, 50, "fixture");
+        assertFalse(exists(DELETED_ID));
+
+        // applying it again is a no-op
+        assertEquals(targetVersion, new CtrlDeltaApplier(mDatabaseCtrls).apply(new ByteArrayInputStream(delta)));
+        assertEquals(targetVersion, mDatabaseCtrls.getDatasetVersion());
+    }
+
+    @Test
+    public void rejectsDeltaFromAnotherBase() throws Exception {
+        byte[] delta = delta(mBaseVersion + 1, mBaseVersion + 2);
+
+        try {
+            new CtrlDeltaApplier(mDatabaseCtrls).apply(new ByteArrayInputStream(delta));
+            fail("delta from another base applied");
+        } catch (IOException expected) {
+            // expected
+        }
+
+        assertEquals(mBaseVersion, mDatabaseCtrls.getDatasetVersion());
+        assertFalse(exists(INSERTED_ID));
+        assertRow(MOVED_ID, 48.1, 11.5, 50, "fixture");
+        assertTrue(exists(DELETED_ID));
+    }
+
+    /**
+     * Inserts {@link #INSERTED_ID}, moves {@link #MOVED_ID} and deletes {@link #DELETED_ID}.
+     */
+    private static byte[] delta(int baseVersion, int targetVersion) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x4C44444C);
+        out.writeInt(1);
+        out.writeInt(baseVersion);
+        out.writeInt(targetVersion);
+        out.writeInt(3);
+
+        out.writeByte(1);
+        out.writeInt(INSERTED_ID);
+        out.writeInt(47500000);
+        out.writeInt(12250000);
+        out.writeInt(0);
+        out.writeShort(80);
+        out.writeByte(1);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeUTF("inserted");
+
+        out.writeByte(3);
+        out.writeInt(MOVED_ID);
+        out.writeInt(48150000);
+        out.writeInt(11550000);
+
+        out.writeByte(2);
+        out.writeInt(DELETED_ID);
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void insertFixture(int id, double latitude, double longitude) {
+        mDatabaseCtrls.getWritableDatabase().execSQL("INSERT OR REPLACE INTO " + DatabaseCtrls.TABLE_CTRLS
+                        + " (id, la, lo, ve, sp, ty, co, ne, st) VALUES (?, ?, ?, 0, 50, 0, 0, 0, 'fixture')",
+                new Object[]{id, latitude, longitude});
+    }
+
+    private void assertRow(int id, double latitude, double longitude, int speed, String description) {
+        Cursor cursor = mDatabaseCtrls.getReadableDatabase().rawQuery(
+                "SELECT la, lo, sp, st FROM " + DatabaseCtrls.TABLE_CTRLS + " WHERE id = ?",
+                new String[]{Integer.toString(id)});
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(latitude, cursor.getDouble(0), 1e-6);
+            assertEquals(longitude, cursor.getDouble(1), 1e-6);
+            assertEquals(speed, cursor.getInt(2));
+            assertEquals(description, cursor.getString(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private boolean exists(int id) {
+        Cursor cursor = mDatabaseCtrls.getReadableDatabase().rawQuery(
+                "SELECT id FROM " + DatabaseCtrls.TABLE_CTRLS + " WHERE id = ?", new String[]{Integer.toString(id)});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.utils;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import io.celox.app.libredrive2.model.Ctrl;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the area queries are answered from the covering index and return the ctrls within the
+ * radius only.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseCtrlsTest {
+
+    private static final long STARTUP_TIMEOUT = 30 * 1000L;
+
+    /* far outside the ids of the bundled ctrls */
+    private static final int FIXTURE_ID = 2000000000;
+
+    @Test
+    public void areaQueryUsesCoveringIndex() throws Exception {
+        DatabaseCtrls databaseCtrls = DatabaseCtrls.getInstance(InstrumentationRegistry.getTargetContext());
+
+        String plan = explainQueryPlan(databaseCtrls, DatabaseCtrls.QUERY_RADIUS,
+                "48.1", "11.55", "0.45", "48.2", "48.0", "11.7", "11.4", "0.01", "10");
+
+        assertTrue(plan, plan.contains("USING COVERING INDEX " + DatabaseCtrls.INDEX_AREA));
+        assertTrue(plan, !plan.contains("SCAN"));
+    }
+
+    @Test
+    public void areaQueryChecksTheRadius() throws Exception {
+        // the pack is installed by the startup, a row inserted before would keep it from installing
+        DatabaseCtrls databaseCtrls = awaitDatabase();
+        double latitude = 48.137154, longitude = 11.576124;
+        databaseCtrls.getWritableDatabase().execSQL("INSERT OR REPLACE INTO " + DatabaseCtrls.TABLE_CTRLS
+                        + " (id, la, lo, ve, sp, ty, co, ne, st) VALUES (?, ?, ?, 0, 50, 0, 0, 0, 'fixture')",
+                new Object[]{FIXTURE_ID, latitude, longitude});
+        try {
+            // diagonally, so the ctrl is inside the bounding box in both cases and only the circle decides
+            int range = 200;
+            assertTrue(contains(databaseCtrls.getCtrlsInArea(
+                    moveLatitude(latitude, 150), moveLongitude(latitude, longitude, 150), range, 0), FIXTURE_ID));
+            assertTrue(!contains(databaseCtrls.getCtrlsInArea(
+                    moveLatitude(latitude, 250), moveLongitude(latitude, longitude, 250), range, 0), FIXTURE_ID));
+        } finally {
+            databaseCtrls.getWritableDatabase().execSQL("DELETE FROM " + DatabaseCtrls.TABLE_CTRLS + " WHERE id = ?",
+                    new Object[]{FIXTURE_ID});
+        }
+    }
+
+    /**
+     * Waits until the {@link StartupPipeline} has opened the database and installed the ctrl pack.
+     */
+    static DatabaseCtrls awaitDatabase() throws InterruptedException {
+        StartupPipeline pipeline = StartupPipeline.getInstance();
+        pipeline.start(InstrumentationRegistry.getTargetContext());
+        long deadline = SystemClock.elapsedRealtime() + STARTUP_TIMEOUT;
+        while (!pipeline.isReady()) {
+            assertTrue("startup timed out", SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(50);
+        }
+        DatabaseCtrls databaseCtrls = pipeline.getDatabaseCtrls();
+        assertNotNull(databaseCtrls);
+        return databaseCtrls;
+    }
+
+    /* moves by the distance in meters at 45 degrees */
+    private static double moveLatitude(double latitude, double distance) {
+        return latitude + distance * Math.sqrt(0.5) / 1000.0 / DatabaseCtrls.DEG_LAT_KM;
+    }
+
+    private static double moveLongitude(double latitude, double longitude, double distance) {
+        return longitude + distance * Math.sqrt(0.5) / 1000.0
+                / (DatabaseCtrls.DEG_LNG_KM * Math.cos(Math.toRadians(latitude)));
+    }
+
+    private static boolean contains(List<Ctrl> ctrls, int id) {
+        for (Ctrl ctrl : ctrls) {
+            if (ctrl.getId() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String explainQueryPlan(DatabaseCtrls databaseCtrls, String sql, String... args) {
+        Cursor cursor = databaseCtrls.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        StringBuilder plan = new StringBuilder();
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan.toString();
+    }
+}
@@ -21,6 +21,8 @@ import android.app.Application;
 import com.pepperonas.aespreferences.AesPrefs;
 import com.pepperonas.andbasx.AndBasx;
 
+import io.celox.app.libredrive2.utils.StartupPipeline;
+
 /**
  * @author Martin Pfeffer
  * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
@@ -36,10 +38,10 @@ public class App extends Application {
         super.onCreate();
 
         AndBasx.init(this);
-        AesPrefs.init(this, "aes_prefs", "GYD0UFHhP9J£", AesPrefs.LogMode.ALL);
-        AesPrefs.initInstallationDate();
-        AesPrefs.initOrIncrementLaunchCounter();
+        AesPrefs.init(this, "aes_prefs", "GYD0UFHhP9J£",
+                getResources().getBoolean(R.bool.is_dev) ? AesPrefs.LogMode.ALL : AesPrefs.LogMode.NONE);
 
+        StartupPipeline.getInstance().start(this);
     }
 
 }
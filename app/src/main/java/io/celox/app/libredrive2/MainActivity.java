@@ -16,16 +16,14 @@
 
 package io.celox.app.libredrive2;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
-import android.speech.tts.TextToSpeech;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.design.widget.BottomNavigationView;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -46,7 +44,12 @@ import com.pepperonas.andbasx.base.ToastUtils;
 
 import java.text.MessageFormat;
 
+import io.celox.app.libredrive2.alert.AlertSounds;
+import io.celox.app.libredrive2.alert.TtsPhraseCache;
 import io.celox.app.libredrive2.custom.BottomBarAdapter;
+import io.celox.app.libredrive2.events.GpsEventBus;
+import io.celox.app.libredrive2.events.LocationEvent;
+import io.celox.app.libredrive2.events.WarningEvent;
 import io.celox.app.libredrive2.fragments.AboutFragment;
 import io.celox.app.libredrive2.fragments.MapFragment;
 import io.celox.app.libredrive2.fragments.NearbyFragment;
@@ -55,7 +58,7 @@ import io.celox.app.libredrive2.services.GpsService;
 import io.celox.app.libredrive2.utils.AesConst;
 import io.celox.app.libredrive2.utils.Const;
 import io.celox.app.libredrive2.utils.DatabaseCtrls;
-import io.celox.app.libredrive2.utils.Utils;
+import io.celox.app.libredrive2.utils.StartupPipeline;
 
 /**
  * The type Main activity.
@@ -75,75 +78,52 @@ public class MainActivity extends AppCompatActivity {
     private DatabaseCtrls mDatabaseCtrls;
     private boolean mIsExitPressedOnce = false;
 
-    private long mLastWarningReceived = System.currentTimeMillis();
-
-    private int mCtrDistanceGrown = 0;
-
-    private Handler mHandlerMainDriver = new Handler();
-    private Runnable mMainDriver = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                ensureResetWarning();
-            } finally {
-                mHandlerMainDriver.postDelayed(mMainDriver, Const.INTERVAL_MAIN_DRIVER);
-            }
+    /* the ctrl the warning shows, -1 for none */
+    private int mWarnedCtrlId = -1;
+
+    private void resetWarning() {
+        mWarnedCtrlId = -1;
+        TextView tvCtrlDescription = findViewById(R.id.tv_nearby_ctrl_description);
+        TextView tvCtrlSpeed = findViewById(R.id.tv_nearby_ctrl_speed);
+        TextView tvDistance = findViewById(R.id.tv_nearby_distance);
+        LinearLayout llNearby = findViewById(R.id.ll_nearby);
+        if (tvCtrlDescription != null) {
+            tvCtrlDescription.setText("");
+        }
+        if (tvCtrlSpeed != null) {
+            tvCtrlSpeed.setText("");
+        }
+        if (tvDistance != null) {
+            tvDistance.setText("");
+        }
+        if (llNearby != null) {
+            llNearby.setBackgroundColor(ContextCompat.getColor(this, R.color.green_200));
         }
-    };
-
-    private void ensureResetWarning() {
-        if ((mLastWarningReceived + Const.DELAY_RESET_WARNING) < System.currentTimeMillis()
-                || mCtrDistanceGrown >= Const.COUNTER_MOVE_FURTHER_AWAY) {
-
-            TextView tvCtrlDescription = findViewById(R.id.tv_nearby_ctrl_description);
-            TextView tvCtrlSpeed = findViewById(R.id.tv_nearby_ctrl_speed);
-            TextView tvDistance = findViewById(R.id.tv_nearby_distance);
-            LinearLayout llNearby = findViewById(R.id.ll_nearby);
-            if (tvCtrlDescription != null) {
-                tvCtrlDescription.setText("");
-            }
-            if (tvCtrlSpeed != null) {
-                tvCtrlSpeed.setText("");
-            }
-            if (tvDistance != null) {
-                tvDistance.setText("");
-            }
-            if (llNearby != null) {
-                llNearby.setBackgroundColor(ContextCompat.getColor(this, R.color.green_200));
-            }
 
-            View swipeAccessor = findViewById(R.id.swipe_accessor_l);
-            if (swipeAccessor != null) {
-                swipeAccessor.setBackgroundColor(ContextCompat.getColor(MainActivity.this, R.color.green_200));
-            }
+        View swipeAccessor = findViewById(R.id.swipe_accessor_l);
+        if (swipeAccessor != null) {
+            swipeAccessor.setBackgroundColor(ContextCompat.getColor(MainActivity.this, R.color.green_200));
         }
     }
 
-    private BroadcastReceiver mGpsStateReceiver = new BroadcastReceiver() {
+    private GpsEventBus.GpsStateListener mGpsStateListener = new GpsEventBus.GpsStateListener() {
 
-        private static final String TAG = "GpsStateReceiver";
+        private static final String TAG = "GpsStateListener";
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String state = intent.getStringExtra(Const.IE_GPS_STATE);
-
-            Log.i(TAG, "onReceive: state=" + state);
+        public void onGpsStateChanged(@NonNull String state) {
+            Log.i(TAG, "onGpsStateChanged: state=" + state);
         }
     };
 
-    private BroadcastReceiver mLocationChangedReceiver = new BroadcastReceiver() {
+    private GpsEventBus.LocationListener mLocationListener = new GpsEventBus.LocationListener() {
         @SuppressWarnings("unused")
-        private static final String TAG = "LocationChangedReceiver";
+        private static final String TAG = "LocationListener";
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            double lat = intent.getDoubleExtra("lat", 0L);
-            double lng = intent.getDoubleExtra("lng", 0L);
-            float speedMs = intent.getFloatExtra("speed_ms", 0F);
+        public void onLocationChanged(@NonNull LocationEvent event) {
+            float speedMs = event.getSpeedMs();
             int speedKmh = (int) (speedMs * 3.6f);
-            float accuracy = intent.getFloatExtra("accuracy", 0F);
-
-            Log.i(TAG, "onReceive: lat=" + lat + ", lng=" + lng + ", speedMs=" + speedMs + ", accuracy=" + accuracy);
 
             TextView tvGpsSpeed = findViewById(R.id.tv_nearby_gps_speed);
             if (tvGpsSpeed != null) {
@@ -152,35 +132,17 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
-    private BroadcastReceiver mCtrlReceiver = new BroadcastReceiver() {
+    private GpsEventBus.WarningListener mWarningListener = new GpsEventBus.WarningListener() {
         @SuppressWarnings("unused")
-        private static final String TAG = "CtrlReceiver";
-
-        public long mLastNotificationPlayed = System.currentTimeMillis();
-        public long mLastTts500MeterPlayed = System.currentTimeMillis();
-        public long mLastTts200MeterPlayed = System.currentTimeMillis();
-        public long mLastTtsAtYourPosition = System.currentTimeMillis();
-        public int mLastDistance = Integer.MAX_VALUE;
+        private static final String TAG = "WarningListener";
 
         @Override
-        public void onReceive(Context context, Intent intent) {
-            mLastWarningReceived = System.currentTimeMillis();
+        public void onWarning(@NonNull WarningEvent event) {
+            mWarnedCtrlId = event.getCtrlId();
 
-            int ctrlSpeed = intent.getIntExtra("ctrl_speed", 0);
-            String ctrlDescription = intent.getStringExtra("ctrl_description");
-            int distance = intent.getIntExtra("distance", 0);
-
-            if (distance > mLastDistance) {
-                mCtrDistanceGrown++;
-            } else {
-                mCtrDistanceGrown = 0;
-            }
-
-            if (mCtrDistanceGrown >= Const.COUNTER_MOVE_FURTHER_AWAY) {
-                Log.i(TAG, "onReceive: moved 3 times further away, will return.");
-                mLastDistance = distance;
-                return;
-            }
+            int ctrlSpeed = event.getCtrlSpeed();
+            String ctrlDescription = event.getCtrlDescription();
+            int distance = event.getDistance();
 
             TextView tvCtrlDescription = findViewById(R.id.tv_nearby_ctrl_description);
             TextView tvCtrlSpeed = findViewById(R.id.tv_nearby_ctrl_speed);
@@ -269,58 +231,33 @@ public class MainActivity extends AppCompatActivity {
             }
 
             if (AesPrefs.getBooleanRes(R.string.PLAY_NOTIFICATION, true)) {
-                long delta = getResources().getInteger(R.integer.delta_time_between_notifications_sec) * 1000L;
-                if ((mLastNotificationPlayed + delta) < System.currentTimeMillis()) {
-                    Log.i(TAG, "onReceive: playing notification...");
-                    mLastNotificationPlayed = System.currentTimeMillis();
-                    Utils.playNotification(getApplicationContext());
-                } else {
-                    Log.i(TAG, "onReceive: skipping notification...");
-                }
+                Log.i(TAG, "onWarning: playing tone for band " + event.getBand() + "...");
+                mAlertSounds.play(event.getBand(), event.getCtrlType());
             }
 
+            // posted once per band and ctrl, the service decides when a band is reached
             if (AesPrefs.getBooleanRes(R.string.PLAY_TTS, true)) {
-                String message = null;
-                if (distance < 550 && distance > 450) {
-                    long delta = getResources().getInteger(R.integer.delta_time_between_notifications_sec) * 1000L;
-                    if ((mLastTts500MeterPlayed + delta) < System.currentTimeMillis()) {
-                        if (mLastDistance > distance) {
-                            Log.i(TAG, "onReceive: playing tts '500'...");
-                            mLastTts500MeterPlayed = System.currentTimeMillis();
-                            message = getString(R.string.warning_in) + " 500 " + getString(R.string.meters) + ".";
-                        }
-                    }
-                } else if (distance < 250 && distance > 150) {
-                    long delta = getResources().getInteger(R.integer.delta_time_between_notifications_sec) * 1000L;
-                    if ((mLastTts200MeterPlayed + delta) < System.currentTimeMillis()) {
-                        if (mLastDistance > distance) {
-                            Log.i(TAG, "onReceive: playing tts '200'...");
-                            mLastTts200MeterPlayed = System.currentTimeMillis();
-                            message = getString(R.string.warning_in) + " 200 " + getString(R.string.meters) + ".";
-                        }
-                    }
-                } else if (distance < 100 && distance > 40) {
-                    long delta = getResources().getInteger(R.integer.delta_time_between_notifications_sec) * 1000L;
-                    if ((mLastTtsAtYourPosition + delta) < System.currentTimeMillis()) {
-                        if (mLastDistance > distance) {
-                            Log.i(TAG, "onReceive: playing tts '200'...");
-                            mLastTtsAtYourPosition = System.currentTimeMillis();
-                            message = getString(R.string.warning_at_your_position) + ".";
-                        }
-                    }
-                }
-
-                if (message != null) {
-                    try {
-                        mTextToSpeech.speak(message, TextToSpeech.QUEUE_FLUSH, null);
-                    } catch (Exception e) {
-                        Log.e(TAG, "onReceive: ", e);
-                    }
-                }
+                Log.i(TAG, "onWarning: playing tts for band " + event.getBand() + "...");
+                mTtsPhraseCache.speak(getWarningPhrase(event.getBand()));
+            }
+        }
 
-                mLastDistance = distance;
+        @Override
+        public void onWarningDistance(int ctrlId, int distance) {
+            if (ctrlId != mWarnedCtrlId) {
+                return;
+            }
+            TextView tvDistance = findViewById(R.id.tv_nearby_distance);
+            if (tvDistance != null) {
+                tvDistance.setText(MessageFormat.format("{0} m", distance));
             }
         }
+
+        @Override
+        public void onWarningCleared() {
+            Log.i(TAG, "onWarningCleared: ctrl passed.");
+            resetWarning();
+        }
     };
 
     private BottomNavigationView.OnNavigationItemSelectedListener
@@ -349,22 +286,29 @@ public class MainActivity extends AppCompatActivity {
         }
     };
 
-    private TextToSpeech mTextToSpeech;
+    private TtsPhraseCache mTtsPhraseCache;
+    private AlertSounds mAlertSounds;
+
+    /**
+     * Gets the voice warning for a band.
+     *
+     * @param band the index into {@link Const#CTRL_WARN_BANDS_IN_METERS}
+     * @return the phrase
+     */
+    private String getWarningPhrase(int band) {
+        if (band < Const.CTRL_WARN_BANDS_IN_METERS.length - 1) {
+            return getString(R.string.warning_in) + " " + Const.CTRL_WARN_BANDS_IN_METERS[band] + " "
+                    + getString(R.string.meters) + ".";
+        }
+        return getString(R.string.warning_at_your_position) + ".";
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        long start = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_main);
 
-        ensureRuntimePermissions();
-
-        try {
-            mDatabaseCtrls = new DatabaseCtrls(this);
-            Log.i(TAG, "onCreate: " + mDatabaseCtrls.getCtrlsCount() + " controls found in database.");
-        } catch (Exception e) {
-            Log.e(TAG, "onCreate: ", e);
-        }
-
         final BottomNavigationView bottomNavigationView = findViewById(R.id.navigation);
         bottomNavigationView.setOnNavigationItemSelectedListener(mOnBottomNavigationItemSelectedListener);
         final BottomBarAdapter bottomBarAdapter = new BottomBarAdapter(getSupportFragmentManager());
@@ -411,16 +355,26 @@ public class MainActivity extends AppCompatActivity {
         Toolbar toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
-        mTextToSpeech = new TextToSpeech(getApplicationContext(), new TextToSpeech.OnInitListener() {
-            @Override
-            public void onInit(int status) {
-                Log.i(TAG, "onInit: status=" + status);
-            }
-        });
+        // recreated with the activity on a change of the locale
+        String[] phrases = new String[Const.CTRL_WARN_BANDS_IN_METERS.length];
+        for (int band = 0; band < phrases.length; band++) {
+            phrases[band] = getWarningPhrase(band);
+        }
+        mTtsPhraseCache = new TtsPhraseCache(this, phrases);
+        mAlertSounds = new AlertSounds(this);
 
-        startMainDriver();
+        StartupPipeline.getInstance().logPhase("ui", start);
+        StartupPipeline.getInstance().whenReady(mStartupListener);
     }
 
+    private StartupPipeline.Listener mStartupListener = new StartupPipeline.Listener() {
+        @Override
+        public void onStartupReady(@Nullable DatabaseCtrls databaseCtrls) {
+            mDatabaseCtrls = databaseCtrls;
+            ensureRuntimePermissions();
+        }
+    };
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -442,13 +396,16 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         Log.i(TAG, "onDestroy: ");
 
+        StartupPipeline.getInstance().remove(mStartupListener);
+
         stopGpsService();
 
-        stopMainDriver();
+        mTtsPhraseCache.release();
+        mAlertSounds.release();
 
-        unregisterReceiver(mLocationChangedReceiver);
-        unregisterReceiver(mCtrlReceiver);
-        unregisterReceiver(mGpsStateReceiver);
+        GpsEventBus.getInstance().unregister(mLocationListener);
+        GpsEventBus.getInstance().unregister(mWarningListener);
+        GpsEventBus.getInstance().unregister(mGpsStateListener);
 
         super.onDestroy();
     }
@@ -490,9 +447,9 @@ public class MainActivity extends AppCompatActivity {
 
         startGpsService();
 
-        registerReceiver(mLocationChangedReceiver, new IntentFilter(Const.FILTER_LOCATION_BROADCAST));
-        registerReceiver(mCtrlReceiver, new IntentFilter(Const.FILTER_WARNING_CTRL));
-        registerReceiver(mGpsStateReceiver, new IntentFilter(Const.FILTER_GPS_UPDATE));
+        GpsEventBus.getInstance().register(mLocationListener);
+        GpsEventBus.getInstance().register(mWarningListener);
+        GpsEventBus.getInstance().register(mGpsStateListener);
     }
 
     private void ensureRuntimePermissions() {
@@ -513,6 +470,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public void startGpsService() {
+        if (!StartupPipeline.getInstance().isReady()) {
+            Log.i(TAG, "startGpsService: startup not done yet.");
+            return;
+        }
         Intent serviceIntent = new Intent(this, GpsService.class);
         startService(serviceIntent);
     }
@@ -547,14 +508,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    void startMainDriver() {
-        mMainDriver.run();
-    }
-
-    void stopMainDriver() {
-        mHandlerMainDriver.removeCallbacks(mMainDriver);
-    }
-
     public DatabaseCtrls getDatabaseCtrls() {
         return mDatabaseCtrls;
     }
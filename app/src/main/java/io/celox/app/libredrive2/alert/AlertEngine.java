@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.alert;
+
+import java.util.Arrays;
+
+/**
+ * Decides when the user is warned about a ctrl. Every ctrl id near the vehicle gets its own state:
+ * approaching (with the warning bands already reported), passed and cooling down, or forgotten. Two
+ * ctrls close to each other are tracked independently, so the closest one changing doesn't reset
+ * the other one.
+ * <p>
+ * The listener is only called on real transitions: a ctrl reaching a band it hasn't been warned
+ * about yet, or a warned ctrl being passed. A passed ctrl isn't warned about again before the
+ * cooldown has elapsed, even if GPS jitter brings it back ahead.
+ * <p>
+ * The state lives in parallel primitive arrays indexed by an open addressing hash of the ctrl id,
+ * an update doesn't allocate unless the table has to grow. Not thread safe, must be used on the
+ * processing thread only and doesn't depend on Android.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class AlertEngine {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "AlertEngine";
+
+    /**
+     * How many updates in a row a warned ctrl may be missing before it counts as passed, so a
+     * single fix with a bad bearing doesn't end the warning.
+     */
+    static final int MAX_MISSES = 2;
+
+    /**
+     * How far beyond the outermost band a warned ctrl has to be to count as passed when it is still
+     * reported, e.g. as one of the nearest ctrls while there is no bearing.
+     */
+    static final int PASSED_MARGIN_IN_METERS = 50;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /* mFlags: bit n is set once band n has been reported, followed by the state and the misses */
+    private static final int MAX_BANDS = 16;
+    private static final int MASK_BANDS = (1 << MAX_BANDS) - 1;
+    private static final int FLAG_PASSED = 1 << 16;
+    private static final int FLAG_EVICTED = 1 << 17;
+    private static final int SHIFT_MISSES = 24;
+    private static final int MASK_MISSES = 0x7F << SHIFT_MISSES;
+
+    /**
+     * Called on the thread calling the engine, must not call back into the engine.
+     */
+    public interface Listener {
+
+        /**
+         * A ctrl reached a band it hasn't been warned about. If several bands were reached since
+         * the last update only the innermost one is reported.
+         *
+         * @param ctrlId   the id of the ctrl
+         * @param band     the index of the band
+         * @param distance the distance to the ctrl in meters
+         */
+        void onAlert(int ctrlId, int band, int distance);
+
+        /**
+         * A ctrl which has been warned about has been passed.
+         *
+         * @param ctrlId the id of the ctrl
+         */
+        void onPassed(int ctrlId);
+    }
+
+    private final int[] mBands;
+    private final long mCooldown;
+    private final Listener mListener;
+
+    private int[] mIds;
+    private int[] mFlags;
+    private long[] mTimes;
+    private int[] mSeen;
+    private int mSize = 0;
+    private int mGeneration = 0;
+
+    /* the arrays the table is rehashed into, swapped with the live ones */
+    private int[] mSpareIds;
+    private int[] mSpareFlags;
+    private long[] mSpareTimes;
+    private int[] mSpareSeen;
+
+    /**
+     * Instantiates a new engine.
+     *
+     * @param bands    the warning bands in meters, descending
+     * @param cooldown how long a passed ctrl isn't warned about again, in milliseconds
+     * @param listener the listener
+     */
+    public AlertEngine(int[] bands, long cooldown, Listener listener) {
+        if (bands.length == 0 || bands.length > MAX_BANDS) {
+            throw new IllegalArgumentException("1 to " + MAX_BANDS + " bands expected, got " + bands.length + ".");
+        }
+        mBands = bands.clone();
+        mCooldown = cooldown;
+        mListener = listener;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Feeds the ctrls near the vehicle from one fix. Ctrls which were warned about and are missing
+     * from {@link #MAX_MISSES} updates in a row count as passed.
+     *
+     * @param now       the time of the fix in milliseconds
+     * @param ids       the ids of the ctrls
+     * @param distances the distances to the ctrls in meters
+     * @param count     the number of ctrls in the arrays
+     */
+    public void update(long now, int[] ids, double[] distances, int count) {
+        mGeneration++;
+        for (int i = 0; i < count; i++) {
+            int slot = insert(ids[i], now);
+            mSeen[slot] = mGeneration;
+            mFlags[slot] &= ~MASK_MISSES;
+            approach(slot, now, distances[i], true);
+        }
+        sweep(now);
+    }
+
+    /**
+     * Feeds a predicted distance to a ctrl between two fixes. Unknown and passed ctrls are ignored.
+     *
+     * @param now      the time of the prediction in milliseconds
+     * @param ctrlId   the id of the ctrl
+     * @param distance the predicted distance to the ctrl in meters
+     */
+    public void predict(long now, int ctrlId, double distance) {
+        int slot = find(ctrlId);
+        if (slot >= 0) {
+            approach(slot, now, distance, false);
+        }
+    }
+
+    /**
+     * Whether any ctrl which has been warned about hasn't been passed yet.
+     *
+     * @return true if a warning is due
+     */
+    public boolean isAlerting() {
+        for (int slot = 0; slot < mIds.length; slot++) {
+            if (mIds[slot] != EMPTY && (mFlags[slot] & MASK_BANDS) != 0 && (mFlags[slot] & FLAG_PASSED) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets all ctrls, e.g. after the ids changed with the data set. Doesn't call the listener.
+     */
+    public void clear() {
+        Arrays.fill(mIds, EMPTY);
+        mSize = 0;
+    }
+
+    /**
+     * Gets the number of ctrls the engine currently keeps state for.
+     *
+     * @return the number of ctrls
+     */
+    public int size() {
+        return mSize;
+    }
+
+    private void approach(int slot, long now, double distance, boolean measured) {
+        int flags = mFlags[slot];
+        if ((flags & FLAG_PASSED) != 0) {
+            if (now - mTimes[slot] < mCooldown) {
+                return;
+            }
+            // cooled down, approaching anew
+            flags &= MASK_MISSES;
+        }
+        mTimes[slot] = now;
+
+        if (measured && (flags & MASK_BANDS) != 0 && distance > mBands[0] + PASSED_MARGIN_IN_METERS) {
+            mFlags[slot] = flags | FLAG_PASSED;
+            mListener.onPassed(mIds[slot]);
+            return;
+        }
+
+        int band = mBands.length - 1;
+        while (band >= 0 && mBands[band] < distance) {
+            band--;
+        }
+        if (band >= 0 && (flags & (1 << band)) == 0) {
+            // the outer bands are skipped if the first report is already further in
+            mFlags[slot] = flags | ((2 << band) - 1);
+            mListener.onAlert(mIds[slot], band, (int) distance);
+        } else {
+            mFlags[slot] = flags;
+        }
+    }
+
+    /**
+     * Passes the warned ctrls which went missing, forgets the ones which were never warned about and
+     * the ones which cooled down.
+     */
+    private void sweep(long now) {
+        boolean evicted = false;
+        for (int slot = 0; slot < mIds.length; slot++) {
+            if (mIds[slot] == EMPTY || mSeen[slot] == mGeneration) {
+                continue;
+            }
+            int flags = mFlags[slot];
+            if ((flags & FLAG_PASSED) != 0) {
+                if (now - mTimes[slot] >= mCooldown) {
+                    mFlags[slot] = flags | FLAG_EVICTED;
+                    evicted = true;
+                }
+            } else if ((flags & MASK_BANDS) == 0) {
+                mFlags[slot] = flags | FLAG_EVICTED;
+                evicted = true;
+            } else if (((flags & MASK_MISSES) >>> SHIFT_MISSES) + 1 >= MAX_MISSES) {
+                mFlags[slot] = (flags & MASK_BANDS) | FLAG_PASSED;
+                mTimes[slot] = now;
+                mListener.onPassed(mIds[slot]);
+            } else {
+                mFlags[slot] = flags + (1 << SHIFT_MISSES);
+            }
+        }
+        if (evicted) {
+            rehash(mIds.length);
+        }
+    }
+
+    private int find(int ctrlId) {
+        int mask = mIds.length - 1;
+        for (int slot = hash(ctrlId) & mask; mIds[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (mIds[slot] == ctrlId) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int insert(int ctrlId, long now) {
+        int slot = find(ctrlId);
+        if (slot >= 0) {
+            return slot;
+        }
+        if ((mSize + 1) * 2 > mIds.length) {
+            rehash(mIds.length * 2);
+        }
+        int mask = mIds.length - 1;
+        slot = hash(ctrlId) & mask;
+        while (mIds[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        mIds[slot] = ctrlId;
+        mFlags[slot] = 0;
+        mTimes[slot] = now;
+        mSeen[slot] = mGeneration - 1;
+        mSize++;
+        return slot;
+    }
+
+    /**
+     * Copies the entries which aren't evicted into the spare arrays and swaps them in. Only
+     * allocates when the capacity changes.
+     */
+    private void rehash(int capacity) {
+        int[] ids = mIds;
+        int[] flags = mFlags;
+        long[] times = mTimes;
+        int[] seen = mSeen;
+        if (capacity != ids.length) {
+            allocate(capacity);
+        } else {
+            mIds = mSpareIds;
+            mFlags = mSpareFlags;
+            mTimes = mSpareTimes;
+            mSeen = mSpareSeen;
+            mSpareIds = ids;
+            mSpareFlags = flags;
+            mSpareTimes = times;
+            mSpareSeen = seen;
+            Arrays.fill(mIds, EMPTY);
+        }
+
+        int mask = capacity - 1;
+        mSize = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == EMPTY || (flags[i] & FLAG_EVICTED) != 0) {
+                continue;
+            }
+            int slot = hash(ids[i]) & mask;
+            while (mIds[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            mIds[slot] = ids[i];
+            mFlags[slot] = flags[i];
+            mTimes[slot] = times[i];
+            mSeen[slot] = seen[i];
+            mSize++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        mIds = new int[capacity];
+        mFlags = new int[capacity];
+        mTimes = new long[capacity];
+        mSeen = new int[capacity];
+        mSpareIds = new int[capacity];
+        mSpareFlags = new int[capacity];
+        mSpareTimes = new long[capacity];
+        mSpareSeen = new int[capacity];
+        Arrays.fill(mIds, EMPTY);
+    }
+
+    private static int hash(int ctrlId) {
+        int h = ctrlId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.alert;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import io.celox.app.libredrive2.R;
+
+/**
+ * Plays the warning tones. All tones are decoded into a {@link SoundPool} once when the instance is
+ * created, so a warning only triggers the playback of a sample which is already in memory.
+ * <p>
+ * Every band has its own tone, one to three beeps rising in pitch as the ctrl gets closer. Type 1,
+ * the bulk of the data set, gets plain tones, the rarer types a brighter timbre so they stand out.
+ * A tone that isn't decoded yet is skipped. Must be used on the main thread.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class AlertSounds {
+
+    private static final String TAG = "AlertSounds";
+
+    /* [timbre][band] */
+    private static final int[][] TONES = {
+            {R.raw.alert_tone_0_0, R.raw.alert_tone_0_1, R.raw.alert_tone_0_2},
+            {R.raw.alert_tone_1_0, R.raw.alert_tone_1_1, R.raw.alert_tone_1_2}};
+
+    private static final int CTRL_TYPE_PLAIN = 1;
+    private static final int MAX_STREAMS = 2;
+
+    private final SoundPool mSoundPool;
+    private final int[][] mSoundIds = new int[TONES.length][];
+    private final boolean[] mLoaded;
+    private int mStreamId = 0;
+
+    /**
+     * Instantiates a new instance and starts decoding the tones.
+     *
+     * @param context the context
+     */
+    @SuppressWarnings("deprecation")
+    public AlertSounds(@NonNull Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mSoundPool = new SoundPool.Builder()
+                    .setMaxStreams(MAX_STREAMS)
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_NOTIFICATION)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                            .build())
+                    .build();
+        } else {
+            mSoundPool = new SoundPool(MAX_STREAMS, AudioManager.STREAM_NOTIFICATION, 0);
+        }
+
+        // the pool numbers the samples from 1
+        int count = 0;
+        for (int[] tones : TONES) {
+            count += tones.length;
+        }
+        mLoaded = new boolean[count + 1];
+        mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                if (status == 0 && sampleId < mLoaded.length) {
+                    mLoaded[sampleId] = true;
+                } else {
+                    Log.w(TAG, "onLoadComplete: tone " + sampleId + " failed, status=" + status);
+                }
+            }
+        });
+        for (int timbre = 0; timbre < TONES.length; timbre++) {
+            mSoundIds[timbre] = new int[TONES[timbre].length];
+            for (int band = 0; band < TONES[timbre].length; band++) {
+                mSoundIds[timbre][band] = mSoundPool.load(context, TONES[timbre][band], 1);
+            }
+        }
+    }
+
+    /**
+     * Plays the tone of a band, stopping the previous one.
+     *
+     * @param band     the index of the band, the innermost tone is used for any further band
+     * @param ctrlType the type of the ctrl
+     */
+    public void play(int band, int ctrlType) {
+        int[] soundIds = mSoundIds[ctrlType == CTRL_TYPE_PLAIN ? 0 : 1];
+        int soundId = soundIds[Math.max(0, Math.min(band, soundIds.length - 1))];
+        if (soundId <= 0 || soundId >= mLoaded.length || !mLoaded[soundId]) {
+            Log.w(TAG, "play: tone " + soundId + " not decoded yet.");
+            return;
+        }
+        if (mStreamId != 0) {
+            mSoundPool.stop(mStreamId);
+        }
+        mStreamId = mSoundPool.play(soundId, 1f, 1f, 1, 0, 1f);
+    }
+
+    /**
+     * Releases the decoded tones, the instance can't be used afterwards.
+     */
+    public void release() {
+        mSoundPool.release();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.alert;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Bundle;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Speaks the voice warnings. The fixed phrases are synthesized to audio files once and played from
+ * prepared {@link MediaPlayer}s, so a warning doesn't wait for the synthesis. Everything else, e.g.
+ * a text with a road name, and the fixed phrases until their files are ready, is spoken live.
+ * <p>
+ * The files are kept in the cache dir, named after the engine, the locale and the text, so they
+ * survive restarts and a change of the locale renders the phrases anew. Files of phrases no longer
+ * in use are deleted. Must be created and used on the main thread.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class TtsPhraseCache {
+
+    private static final String TAG = "TtsPhraseCache";
+
+    private static final String DIR = "tts";
+    private static final String SUFFIX = ".wav";
+    private static final String SUFFIX_PARTIAL = ".part";
+
+    private final Context mContext;
+    private final TextToSpeech mTextToSpeech;
+    private final String[] mPhrases;
+    private volatile boolean mReleased = false;
+    private MediaPlayer mPlaying;
+
+    /* mPlayers and mRendering are guarded by mLock, they are filled by the synthesis callbacks */
+    private final Object mLock = new Object();
+    private final HashMap<String, MediaPlayer> mPlayers = new HashMap<>();
+    private final HashMap<String, String> mRendering = new HashMap<>();
+
+    /**
+     * Instantiates a new cache and starts rendering the phrases once the engine is ready.
+     *
+     * @param context the context
+     * @param phrases the fixed phrases, in the current locale
+     */
+    public TtsPhraseCache(@NonNull Context context, @NonNull String... phrases) {
+        mContext = context.getApplicationContext();
+        mPhrases = phrases.clone();
+        mTextToSpeech = new TextToSpeech(mContext, new TextToSpeech.OnInitListener() {
+            @Override
+            public void onInit(int status) {
+                Log.i(TAG, "onInit: status=" + status);
+                if (status != TextToSpeech.SUCCESS || mReleased) {
+                    return;
+                }
+                mTextToSpeech.setLanguage(Locale.getDefault());
+                mTextToSpeech.setOnUtteranceProgressListener(mProgressListener);
+                render();
+            }
+        });
+    }
+
+    /**
+     * Speaks a text, flushing whatever is being spoken.
+     *
+     * @param text the text
+     */
+    public void speak(@NonNull String text) {
+        if (mReleased) {
+            return;
+        }
+        MediaPlayer player;
+        synchronized (mLock) {
+            player = mPlayers.get(text);
+        }
+        stop();
+        try {
+            if (player != null) {
+                player.seekTo(0);
+                player.start();
+                mPlaying = player;
+            } else {
+                Log.d(TAG, "speak: live '" + text + "'");
+                mTextToSpeech.speak(text, TextToSpeech.QUEUE_FLUSH, null);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "speak: ", e);
+        }
+    }
+
+    /**
+     * Releases the engine and the players, the cache can't be used afterwards.
+     */
+    public void release() {
+        mReleased = true;
+        mTextToSpeech.shutdown();
+        synchronized (mLock) {
+            for (MediaPlayer player : mPlayers.values()) {
+                player.release();
+            }
+            mPlayers.clear();
+            mRendering.clear();
+        }
+        mPlaying = null;
+    }
+
+    private void stop() {
+        if (mPlaying != null && mPlaying.isPlaying()) {
+            mPlaying.pause();
+        }
+        mPlaying = null;
+        if (mTextToSpeech.isSpeaking()) {
+            mTextToSpeech.stop();
+        }
+    }
+
+    /**
+     * Loads the files which are already there and synthesizes the missing ones, off the main
+     * thread.
+     */
+    private void render() {
+        final String engine = mTextToSpeech.getDefaultEngine();
+        final Locale locale = Locale.getDefault();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                File dir = new File(mContext.getCacheDir(), DIR);
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    Log.w(TAG, "render: can't create " + dir + ", speaking live.");
+                    return;
+                }
+
+                HashSet<String> names = new HashSet<>();
+                int loaded = 0, synthesizing = 0;
+                for (String phrase : mPhrases) {
+                    String name = Integer.toHexString((engine + "|" + locale + "|" + phrase).hashCode());
+                    names.add(name + SUFFIX);
+                    names.add(name + SUFFIX_PARTIAL);
+                    File file = new File(dir, name + SUFFIX);
+                    if (file.isFile() && load(phrase, file)) {
+                        loaded++;
+                    } else if (synthesize(phrase, new File(dir, name + SUFFIX_PARTIAL), name)) {
+                        synthesizing++;
+                    }
+                }
+
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!names.contains(file.getName()) && !file.delete()) {
+                            Log.w(TAG, "render: can't delete " + file);
+                        }
+                    }
+                }
+                Log.i(TAG, "render: " + locale + ", " + loaded + " cached, " + synthesizing + " synthesizing.");
+            }
+        }).start();
+    }
+
+    @SuppressWarnings("deprecation")
+    private boolean synthesize(@NonNull String phrase, @NonNull File file, @NonNull String utteranceId) {
+        synchronized (mLock) {
+            if (mReleased) {
+                return false;
+            }
+            mRendering.put(utteranceId, phrase);
+        }
+        int result;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            result = mTextToSpeech.synthesizeToFile(phrase, new Bundle(), file, utteranceId);
+        } else {
+            HashMap<String, String> params = new HashMap<>();
+            params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+            result = mTextToSpeech.synthesizeToFile(phrase, params, file.getAbsolutePath());
+        }
+        if (result != TextToSpeech.SUCCESS) {
+            Log.w(TAG, "synthesize: failed for '" + phrase + "'");
+            synchronized (mLock) {
+                mRendering.remove(utteranceId);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private boolean load(@NonNull String phrase, @NonNull File file) {
+        MediaPlayer player = new MediaPlayer();
+        try {
+            player.setDataSource(file.getAbsolutePath());
+            player.prepare();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "load: " + file + " unusable, " + e.getMessage());
+            player.release();
+            if (!file.delete()) {
+                Log.w(TAG, "load: can't delete " + file);
+            }
+            return false;
+        }
+        synchronized (mLock) {
+            if (mReleased) {
+                player.release();
+                return false;
+            }
+            MediaPlayer previous = mPlayers.put(phrase, player);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called on a thread of the engine. A file is only renamed to its final name once it is
+     * complete, so an interrupted synthesis is simply repeated on the next start.
+     */
+    private final UtteranceProgressListener mProgressListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            String phrase;
+            synchronized (mLock) {
+                phrase = mRendering.remove(utteranceId);
+            }
+            if (phrase == null) {
+                return;
+            }
+            File dir = new File(mContext.getCacheDir(), DIR);
+            File partial = new File(dir, utteranceId + SUFFIX_PARTIAL);
+            File file = new File(dir, utteranceId + SUFFIX);
+            if (partial.renameTo(file)) {
+                load(phrase, file);
+            } else {
+                Log.w(TAG, "onDone: can't rename " + partial);
+            }
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            String phrase;
+            synchronized (mLock) {
+                phrase = mRendering.remove(utteranceId);
+            }
+            if (phrase != null) {
+                Log.w(TAG, "onError: failed to synthesize '" + phrase + "'");
+                if (!new File(new File(mContext.getCacheDir(), DIR), utteranceId + SUFFIX_PARTIAL).delete()) {
+                    Log.d(TAG, "onError: nothing to delete.");
+                }
+            }
+        }
+    };
+}
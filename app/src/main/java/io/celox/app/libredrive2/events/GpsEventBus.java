@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.events;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * In-process replacement of the global broadcasts between the {@link
+ * io.celox.app.libredrive2.services.GpsService} and the UI.
+ * <p>
+ * Events may be posted from any thread and are delivered on the main thread. The events are
+ * preallocated and reused, so posting doesn't allocate. Updates like location fixes have one pending
+ * instance: if the main thread is busy, only the latest one is delivered. Warnings are transitions,
+ * each of them plays a tone, so they are queued in a ring buffer and delivered in order. Listeners
+ * have to be registered and unregistered on the main thread.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class GpsEventBus {
+
+    private static final String TAG = "GpsEventBus";
+
+    /**
+     * The warnings which may be pending, the oldest one is dropped beyond that.
+     */
+    private static final int WARNING_QUEUE_SIZE = 16;
+
+    /**
+     * Receives location fixes.
+     */
+    public interface LocationListener {
+
+        void onLocationChanged(@NonNull LocationEvent event);
+    }
+
+    /**
+     * Receives warnings about ctrls ahead.
+     */
+    public interface WarningListener {
+
+        void onWarning(@NonNull WarningEvent event);
+
+        /**
+         * The distance to the warned ctrl changed, called for every fix between the transitions.
+         */
+        void onWarningDistance(int ctrlId, int distance);
+
+        void onWarningCleared();
+    }
+
+    /**
+     * Receives state changes of the location provider.
+     */
+    public interface GpsStateListener {
+
+        void onGpsStateChanged(@NonNull String state);
+    }
+
+    /**
+     * Receives changes of the ctrls in the database.
+     */
+    public interface DatasetListener {
+
+        void onDatasetChanged(int datasetVersion);
+    }
+
+    private static GpsEventBus sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayList<LocationListener> mLocationListeners = new ArrayList<>();
+    private final ArrayList<WarningListener> mWarningListeners = new ArrayList<>();
+    private final ArrayList<GpsStateListener> mGpsStateListeners = new ArrayList<>();
+    private final ArrayList<DatasetListener> mDatasetListeners = new ArrayList<>();
+
+    /* mPendingLocation and mLocationPosted are guarded by mPendingLocation */
+    private final LocationEvent mPendingLocation = new LocationEvent();
+    private boolean mLocationPosted = false;
+    private final LocationEvent mLocation = new LocationEvent();
+
+    /* mWarningQueue, mWarningHead, mWarningCount and mWarningPosted are guarded by mWarningQueue */
+    private final WarningEvent[] mWarningQueue = new WarningEvent[WARNING_QUEUE_SIZE];
+    private int mWarningHead = 0;
+    private int mWarningCount = 0;
+    private boolean mWarningPosted = false;
+    private final WarningEvent mWarning = new WarningEvent();
+
+    /* mPendingDistanceCtrlId, mPendingDistance and mDistancePosted are guarded by mDispatchDistance */
+    private int mPendingDistanceCtrlId;
+    private int mPendingDistance;
+    private boolean mDistancePosted = false;
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized GpsEventBus getInstance() {
+        if (sInstance == null) {
+            sInstance = new GpsEventBus();
+        }
+        return sInstance;
+    }
+
+    private GpsEventBus() {
+        for (int i = 0; i < mWarningQueue.length; i++) {
+            mWarningQueue[i] = new WarningEvent();
+        }
+    }
+
+    public void register(@NonNull LocationListener listener) {
+        if (!mLocationListeners.contains(listener)) {
+            mLocationListeners.add(listener);
+        }
+    }
+
+    public void unregister(@NonNull LocationListener listener) {
+        mLocationListeners.remove(listener);
+    }
+
+    public void register(@NonNull WarningListener listener) {
+        if (!mWarningListeners.contains(listener)) {
+            mWarningListeners.add(listener);
+        }
+    }
+
+    public void unregister(@NonNull WarningListener listener) {
+        mWarningListeners.remove(listener);
+    }
+
+    public void register(@NonNull GpsStateListener listener) {
+        if (!mGpsStateListeners.contains(listener)) {
+            mGpsStateListeners.add(listener);
+        }
+    }
+
+    public void unregister(@NonNull GpsStateListener listener) {
+        mGpsStateListeners.remove(listener);
+    }
+
+    public void register(@NonNull DatasetListener listener) {
+        if (!mDatasetListeners.contains(listener)) {
+            mDatasetListeners.add(listener);
+        }
+    }
+
+    public void unregister(@NonNull DatasetListener listener) {
+        mDatasetListeners.remove(listener);
+    }
+
+    /**
+     * Posts a location fix.
+     *
+     * @param location the location, only read during the call
+     */
+    public void postLocation(@NonNull Location location) {
+        synchronized (mPendingLocation) {
+            mPendingLocation.set(location);
+            if (mLocationPosted) {
+                return;
+            }
+            mLocationPosted = true;
+        }
+        mMainHandler.post(mDispatchLocation);
+    }
+
+    /**
+     * Posts a warning about a ctrl ahead.
+     *
+     * @param ctrlId          the id of the ctrl
+     * @param ctrlSpeed       the speed limit
+     * @param ctrlType        the type
+     * @param ctrlDescription the description
+     * @param band            the index of the warning band reached
+     * @param distance        the distance in meters
+     */
+    public void postWarning(int ctrlId, int ctrlSpeed, int ctrlType, @NonNull String ctrlDescription, int band,
+                            int distance) {
+        synchronized (mWarningQueue) {
+            enqueueWarning().set(ctrlId, ctrlSpeed, ctrlType, ctrlDescription, band, distance);
+            if (mWarningPosted) {
+                return;
+            }
+            mWarningPosted = true;
+        }
+        mMainHandler.post(mDispatchWarning);
+    }
+
+    /**
+     * Posts that the ctrl has been passed.
+     */
+    public void postWarningCleared() {
+        synchronized (mWarningQueue) {
+            enqueueWarning().clear();
+            if (mWarningPosted) {
+                return;
+            }
+            mWarningPosted = true;
+        }
+        mMainHandler.post(mDispatchWarning);
+    }
+
+    /**
+     * Posts the distance to the warned ctrl, only the latest one is delivered.
+     *
+     * @param ctrlId   the id of the ctrl
+     * @param distance the distance in meters
+     */
+    public void postWarningDistance(int ctrlId, int distance) {
+        synchronized (mDispatchDistance) {
+            mPendingDistanceCtrlId = ctrlId;
+            mPendingDistance = distance;
+            if (mDistancePosted) {
+                return;
+            }
+            mDistancePosted = true;
+        }
+        mMainHandler.post(mDispatchDistance);
+    }
+
+    /**
+     * Gets the next free slot of the queue, must hold the lock on mWarningQueue.
+     */
+    private WarningEvent enqueueWarning() {
+        if (mWarningCount == mWarningQueue.length) {
+            Log.w(TAG, "enqueueWarning: queue full, dropping the oldest warning.");
+            mWarningHead = (mWarningHead + 1) % mWarningQueue.length;
+            mWarningCount--;
+        }
+        return mWarningQueue[(mWarningHead + mWarningCount++) % mWarningQueue.length];
+    }
+
+    /**
+     * Posts a state change of the location provider. Rare, so this one allocates.
+     *
+     * @param state the state
+     */
+    public void postGpsState(@NonNull final String state) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mGpsStateListeners.size() - 1; i >= 0; i--) {
+                    if (i < mGpsStateListeners.size()) {
+                        mGpsStateListeners.get(i).onGpsStateChanged(state);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Posts that ctrls have been added, moved or removed. Rare, so this one allocates.
+     *
+     * @param datasetVersion the version of the data set
+     */
+    public void postDatasetChanged(final int datasetVersion) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = mDatasetListeners.size() - 1; i >= 0; i--) {
+                    if (i < mDatasetListeners.size()) {
+                        mDatasetListeners.get(i).onDatasetChanged(datasetVersion);
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * The listeners are iterated backwards, so a listener may unregister itself while it is called.
+     */
+
+    private final Runnable mDispatchLocation = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPendingLocation) {
+                mLocation.set(mPendingLocation);
+                mLocationPosted = false;
+            }
+            for (int i = mLocationListeners.size() - 1; i >= 0; i--) {
+                if (i < mLocationListeners.size()) {
+                    mLocationListeners.get(i).onLocationChanged(mLocation);
+                }
+            }
+        }
+    };
+
+    private final Runnable mDispatchWarning = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (mWarningQueue) {
+                    if (mWarningCount == 0) {
+                        mWarningPosted = false;
+                        return;
+                    }
+                    mWarning.set(mWarningQueue[mWarningHead]);
+                    mWarningHead = (mWarningHead + 1) % mWarningQueue.length;
+                    mWarningCount--;
+                }
+                for (int i = mWarningListeners.size() - 1; i >= 0; i--) {
+                    if (i < mWarningListeners.size()) {
+                        if (mWarning.isActive()) {
+                            mWarningListeners.get(i).onWarning(mWarning);
+                        } else {
+                            mWarningListeners.get(i).onWarningCleared();
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+    private final Runnable mDispatchDistance = new Runnable() {
+        @Override
+        public void run() {
+            int ctrlId, distance;
+            synchronized (this) {
+                ctrlId = mPendingDistanceCtrlId;
+                distance = mPendingDistance;
+                mDistancePosted = false;
+            }
+            for (int i = mWarningListeners.size() - 1; i >= 0; i--) {
+                if (i < mWarningListeners.size()) {
+                    mWarningListeners.get(i).onWarningDistance(ctrlId, distance);
+                }
+            }
+        }
+    };
+}
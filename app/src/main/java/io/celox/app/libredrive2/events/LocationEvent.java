@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.celox.app.libredrive2.events;
+
+import android.location.Location;
+import android.support.annotation.NonNull;
+
+/**
+ * A location fix as delivered by the {@link GpsEventBus}. The instance is reused for every fix,
+ * listeners must copy the values they want to keep.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class LocationEvent {
+
+    private double mLatitude;
+    private double mLongitude;
+    private float mSpeedMs;
+    private float mAccuracy;
+    private float mBearing;
+    private boolean mHasBearing;
+    private long mTime;
+
+    LocationEvent() {
+    }
+
+    void set(@NonNull Location location) {
+        mLatitude = location.getLatitude();
+        mLongitude = location.getLongitude();
+        mSpeedMs = location.getSpeed();
+        mAccuracy = location.getAccuracy();
+        mBearing = location.getBearing();
+        mHasBearing = location.hasBearing();
+        mTime = location.getTime();
+    }
+
+    void set(@NonNull LocationEvent event) {
+        mLatitude = event.mLatitude;
+        mLongitude = event.mLongitude;
+        mSpeedMs = event.mSpeedMs;
+        mAccuracy = event.mAccuracy;
+        mBearing = event.mBearing;
+        mHasBearing = event.mHasBearing;
+        mTime = event.mTime;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public float getSpeedMs() {
+        return mSpeedMs;
+    }
+
+    public float getAccuracy() {
+        return mAccuracy;
+    }
+
+    public float getBearing() {
+        return mBearing;
+    }
+
+    public boolean hasBearing() {
+        return mHasBearing;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.celox.app.libredrive2.events;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The ctrl the user is currently warned about, as delivered by the {@link GpsEventBus}. Only posted
+ * when the ctrl reaches the next warning band. The instance is reused for every warning, listeners
+ * must copy the values they want to keep.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class WarningEvent {
+
+    private boolean mActive;
+    private int mCtrlId;
+    private int mCtrlSpeed;
+    private int mCtrlType;
+    private String mCtrlDescription = "";
+    private int mBand;
+    private int mDistance;
+
+    WarningEvent() {
+    }
+
+    void set(int ctrlId, int ctrlSpeed, int ctrlType, @NonNull String ctrlDescription, int band, int distance) {
+        mActive = true;
+        mCtrlId = ctrlId;
+        mCtrlSpeed = ctrlSpeed;
+        mCtrlType = ctrlType;
+        mCtrlDescription = ctrlDescription;
+        mBand = band;
+        mDistance = distance;
+    }
+
+    void set(@NonNull WarningEvent event) {
+        mActive = event.mActive;
+        mCtrlId = event.mCtrlId;
+        mCtrlSpeed = event.mCtrlSpeed;
+        mCtrlType = event.mCtrlType;
+        mCtrlDescription = event.mCtrlDescription;
+        mBand = event.mBand;
+        mDistance = event.mDistance;
+    }
+
+    void clear() {
+        mActive = false;
+    }
+
+    /**
+     * Whether there is a ctrl to warn about, false once it has been passed.
+     *
+     * @return the active state
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    public int getCtrlId() {
+        return mCtrlId;
+    }
+
+    public int getCtrlSpeed() {
+        return mCtrlSpeed;
+    }
+
+    public int getCtrlType() {
+        return mCtrlType;
+    }
+
+    @NonNull
+    public String getCtrlDescription() {
+        return mCtrlDescription;
+    }
+
+    /**
+     * Gets the warning band the ctrl has reached.
+     *
+     * @return the index into {@link io.celox.app.libredrive2.utils.Const#CTRL_WARN_BANDS_IN_METERS}
+     */
+    public int getBand() {
+        return mBand;
+    }
+
+    /**
+     * Gets the distance along the track.
+     *
+     * @return the distance in meters
+     */
+    public int getDistance() {
+        return mDistance;
+    }
+}
@@ -16,15 +16,18 @@
 
 package io.celox.app.libredrive2.fragments;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -36,20 +39,28 @@ import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
+import com.google.android.gms.maps.model.BitmapDescriptor;
 import com.google.android.gms.maps.model.BitmapDescriptorFactory;
 import com.google.android.gms.maps.model.Circle;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
 import com.google.android.gms.maps.model.Marker;
 import com.google.android.gms.maps.model.MarkerOptions;
 
-import java.util.List;
+import java.io.IOException;
 
 import io.celox.app.libredrive2.MainActivity;
 import io.celox.app.libredrive2.R;
-import io.celox.app.libredrive2.model.Ctrl;
+import io.celox.app.libredrive2.events.GpsEventBus;
+import io.celox.app.libredrive2.events.LocationEvent;
+import io.celox.app.libredrive2.index.BinaryCtrlIndex;
+import io.celox.app.libredrive2.index.CtrlStore;
+import io.celox.app.libredrive2.map.CtrlClusterIndex;
+import io.celox.app.libredrive2.map.CtrlMarkerManager;
 import io.celox.app.libredrive2.utils.Const;
 import io.celox.app.libredrive2.utils.DatabaseCtrls;
+import io.celox.app.libredrive2.utils.StartupPipeline;
 
 /**
  * @author Martin Pfeffer
@@ -64,7 +75,18 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
     private static final int MENU_MAP_LOCK = 2;
     private static final int MENU_ENABLE_TRAFFIC = 3;
 
+    private static final int CLUSTER_ICON_SIZE_DP = 40;
+
     private GoogleMap mGoogleMap;
+    private CtrlMarkerManager mCtrlMarkerManager;
+    private Marker mUserMarker;
+    private Circle mCtrlsCircle;
+
+    private volatile CtrlClusterIndex mCtrlClusterIndex;
+    /* counts the builds of the cluster index, only touched on the main thread */
+    private int mClusterIndexGeneration = 0;
+    private final SparseArray<BitmapDescriptor> mClusterIcons = new SparseArray<>();
+    private final Handler mHandler = new Handler();
 
     private DatabaseCtrls mDatabaseCtrls;
 
@@ -74,13 +96,13 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
 
     private int mCtr = 0;
 
-    private BroadcastReceiver mLocationChangedReceiver = new BroadcastReceiver() {
+    private GpsEventBus.LocationListener mLocationListener = new GpsEventBus.LocationListener() {
         public boolean mUpdatePositionOnce = true;
 
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onLocationChanged(@NonNull LocationEvent event) {
             if (getActivity() == null) {
-                Log.w(TAG, "onReceive: missing activity.");
+                Log.w(TAG, "onLocationChanged: missing activity.");
                 return;
             }
             try {
@@ -90,37 +112,42 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
                     mDatabaseCtrls = ((MainActivity) getActivity()).getDatabaseCtrls();
                 }
 
-                double lat = intent.getDoubleExtra("lat", 0d);
-                double lng = intent.getDoubleExtra("lng", 0d);
+                double lat = event.getLatitude();
+                double lng = event.getLongitude();
                 if (lat != 0d && lng != 0d) {
                     mLastUserPosition = new LatLng(lat, lng);
                 }
 
-                int warn = intent.getIntExtra("ctrl", -1);
-
-                if (warn != -1) {
-                    Log.i(TAG, "onReceive: Ctrl found!");
-                }
-
                 if (mIsRepositioning || mUpdatePositionOnce) {
                     mUpdatePositionOnce = false;
+                    // the markers follow in onCameraIdle
                     mGoogleMap.moveCamera(CameraUpdateFactory.newLatLngZoom(new LatLng(lat, lng), 16));
-
-                    if (mDatabaseCtrls == null) return;
-
-                    List<Ctrl> ctrlList = mDatabaseCtrls.getCtrlsInArea(lat, lng, 1500);
-                    if (getResources().getBoolean(R.bool.show_ctrls_in_map)) {
-                        for (Ctrl ctrl : ctrlList) {
-                            String snippet = getSnippet(ctrl);
-                            mGoogleMap.addMarker(new MarkerOptions()
-                                    .position(ctrl.getLatLng())
-                                    .title(ctrl.getDescription())
-                                    .snippet(snippet));
-                        }
-                    }
                 }
             } catch (Exception e) {
-                Log.e(TAG, "mLocationChangedReceiver: ", e);
+                Log.e(TAG, "mLocationListener: ", e);
+            }
+        }
+    };
+
+    private GpsEventBus.DatasetListener mDatasetListener = new GpsEventBus.DatasetListener() {
+        @Override
+        public void onDatasetChanged(int datasetVersion) {
+            if (mDatabaseCtrls != null) {
+                buildClusterIndex(mDatabaseCtrls);
+            }
+        }
+    };
+
+    /**
+     * The cluster index is only built once the database is there, the bundled index is only used
+     * if it matches the data set in the database.
+     */
+    private StartupPipeline.Listener mStartupListener = new StartupPipeline.Listener() {
+        @Override
+        public void onStartupReady(@Nullable DatabaseCtrls databaseCtrls) {
+            mDatabaseCtrls = databaseCtrls;
+            if (databaseCtrls != null) {
+                buildClusterIndex(databaseCtrls);
             }
         }
     };
@@ -144,7 +171,9 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
         } else {
             Log.w(TAG, "onActivityCreated: missing activity.");
         }
-        getActivity().registerReceiver(mLocationChangedReceiver, new IntentFilter(Const.FILTER_LOCATION_BROADCAST));
+
+        StartupPipeline.getInstance().whenReady(mStartupListener);
+        GpsEventBus.getInstance().register(mDatasetListener);
 
         SupportMapFragment mapFrag = (SupportMapFragment) getChildFragmentManager().findFragmentById(R.id.map);
         mapFrag.getMapAsync(this);
@@ -207,28 +236,24 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
     @Override
     public void onResume() {
         super.onResume();
-        if (getActivity() != null) {
-            getActivity().registerReceiver(mLocationChangedReceiver, new IntentFilter(Const.FILTER_LOCATION_BROADCAST));
-        } else {
-            Log.w(TAG, "onResume: missing activity.");
-        }
+        GpsEventBus.getInstance().register(mLocationListener);
     }
 
     @Override
     public void onPause() {
-        try {
-            if (getActivity() != null) {
-                getActivity().unregisterReceiver(mLocationChangedReceiver);
-            } else {
-                Log.w(TAG, "onPause: missing activity.");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error on unregister receiver.");
-        }
+        GpsEventBus.getInstance().unregister(mLocationListener);
 
         super.onPause();
     }
 
+    @Override
+    public void onDestroyView() {
+        StartupPipeline.getInstance().remove(mStartupListener);
+        GpsEventBus.getInstance().unregister(mDatasetListener);
+
+        super.onDestroyView();
+    }
+
     @Override
     public void onMapReady(final GoogleMap googleMap) {
         if (getActivity() == null) {
@@ -237,6 +262,26 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
         }
 
         mGoogleMap = googleMap;
+        mCtrlMarkerManager = new CtrlMarkerManager(googleMap, new CtrlMarkerManager.MarkerFactory() {
+            @NonNull
+            @Override
+            public MarkerOptions createCtrl(@NonNull CtrlStore store, int row) {
+                return new MarkerOptions()
+                        .position(new LatLng(store.getLatitude(row), store.getLongitude(row)))
+                        .title(store.getDescription(row))
+                        .snippet(getSnippet(store.getSpeed(row)));
+            }
+
+            @NonNull
+            @Override
+            public MarkerOptions createCluster(double latitude, double longitude, int count) {
+                return new MarkerOptions()
+                        .position(new LatLng(latitude, longitude))
+                        .title(getString(R.string.map_cluster_title, count))
+                        .icon(getClusterIcon(count))
+                        .anchor(0.5f, 0.5f);
+            }
+        }, Const.MAX_CTRLS_IN_MAP);
 
         mGoogleMap.setTrafficEnabled(true);
 
@@ -266,7 +311,6 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
 
     private void fireOnce() {
         android.util.Log.i(TAG, "fireOnce(" + (mCtr++) + ")");
-        mGoogleMap.clear();
         updateMap();
     }
 
@@ -278,65 +322,166 @@ public class MapFragment extends android.support.v4.app.Fragment implements OnMa
         try {
             if (mLastUserPosition != null) {
                 // show users marker
-                LatLng latLng = new LatLng(mLastUserPosition.latitude, mLastUserPosition.longitude);
-                MarkerOptions markerOptions = new MarkerOptions();
-                markerOptions.position(latLng);
-                markerOptions.title(getString(R.string.your_position));
-                markerOptions.icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN));
-                mGoogleMap.addMarker(markerOptions);
+                if (mUserMarker == null) {
+                    MarkerOptions markerOptions = new MarkerOptions();
+                    markerOptions.position(mLastUserPosition);
+                    markerOptions.title(getString(R.string.your_position));
+                    markerOptions.icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_GREEN));
+                    mUserMarker = mGoogleMap.addMarker(markerOptions);
+                } else {
+                    mUserMarker.setPosition(mLastUserPosition);
+                }
             }
 
-            // show ctrls circle
-            final Circle circle = mGoogleMap.addCircle(new CircleOptions()
-                    .center(mGoogleMap.getCameraPosition().target)
-                    .radius(Const.MAP_MARKER_RADIUS)
-                    .strokeWidth(Const.MAP_CTRLS_CIRCLE_LINE_WIDTH)
-                    .strokeColor(ContextCompat.getColor(getActivity(), R.color.map_ctrls_circle))
-            );
-
-            // animate the camera
+            // scale the radius with the zoom
             float z2 = mGoogleMap.getCameraPosition().zoom;
             double base = Const.MAP_MARKER_RADIUS / zoomToDistFactor(19d);
             int newR = (int) (base * zoomToDistFactor(z2));
-            circle.setRadius(newR);
-
-            android.util.Log.i(TAG, "updateMap: " + newR);
 
-            if (newR > 70000) {
-                newR = 70000;
+            // show ctrls circle
+            if (mCtrlsCircle == null) {
+                mCtrlsCircle = mGoogleMap.addCircle(new CircleOptions()
+                        .center(mGoogleMap.getCameraPosition().target)
+                        .radius(newR)
+                        .strokeWidth(Const.MAP_CTRLS_CIRCLE_LINE_WIDTH)
+                        .strokeColor(ContextCompat.getColor(getActivity(), R.color.map_ctrls_circle))
+                );
+            } else {
+                mCtrlsCircle.setCenter(mGoogleMap.getCameraPosition().target);
+                mCtrlsCircle.setRadius(newR);
             }
 
-            // add ctrls marker
-            List<Ctrl> ctrlList = mDatabaseCtrls.getCtrlsInArea(
-                    mGoogleMap.getCameraPosition().target.latitude,
-                    mGoogleMap.getCameraPosition().target.longitude,
-                    newR);
+            android.util.Log.i(TAG, "updateMap: " + newR);
 
-            getActivity().setTitle(getString(R.string.map) + " (" + ctrlList.size() + ")");
+            if (!getResources().getBoolean(R.bool.show_ctrls_in_map)) {
+                mCtrlMarkerManager.clear();
+                return;
+            }
 
-            int added = 0;
-            for (Ctrl ctrl : ctrlList) {
-                if (added > Const.MAX_CTRLS_IN_MAP) {
-                    return;
+            // add ctrls and cluster markers
+            int ctrlsInView;
+            mCtrlMarkerManager.beginUpdate();
+            CtrlClusterIndex ctrlClusterIndex = mCtrlClusterIndex;
+            if (ctrlClusterIndex != null) {
+                LatLngBounds bounds = mGoogleMap.getProjection().getVisibleRegion().latLngBounds;
+                ctrlClusterIndex.query(z2,
+                        bounds.southwest.latitude, bounds.southwest.longitude,
+                        bounds.northeast.latitude, bounds.northeast.longitude,
+                        mClusterVisitor);
+                ctrlsInView = ctrlClusterIndex.count(z2,
+                        bounds.southwest.latitude, bounds.southwest.longitude,
+                        bounds.northeast.latitude, bounds.northeast.longitude);
+            } else {
+                // the cluster index is still being built
+                if (newR > 70000) {
+                    newR = 70000;
                 }
-                added++;
-
-                String snippet = getSnippet(ctrl);
-                if (getResources().getBoolean(R.bool.show_ctrls_in_map)) {
-                    mGoogleMap.addMarker(new MarkerOptions()
-                            .position(ctrl.getLatLng())
-                            .title(ctrl.getDescription())
-                            .snippet(snippet));
+                // the closest ctrls to the center, as many as the map shows
+                CtrlStore store = mDatabaseCtrls.getCtrlStore(
+                        mGoogleMap.getCameraPosition().target.latitude,
+                        mGoogleMap.getCameraPosition().target.longitude,
+                        newR, Const.MAX_CTRLS_IN_MAP);
+                for (int row = 0; row < store.size(); row++) {
+                    mCtrlMarkerManager.putCtrl(store, row);
                 }
+                ctrlsInView = store.size();
             }
+            mCtrlMarkerManager.endUpdate();
+
+            getActivity().setTitle(getString(R.string.map) + " (" + ctrlsInView + ")");
         } catch (NullPointerException e) {
             e.printStackTrace();
         }
     }
 
-    private String getSnippet(Ctrl ctrl) {
-        if (ctrl.getSpeed() == 0) return null;
-        return getString(R.string.max) + " " + ctrl.getSpeed() + getString(R.string.kmh);
+    private final CtrlClusterIndex.Visitor mClusterVisitor = new CtrlClusterIndex.Visitor() {
+        @Override
+        public void onCtrl(@NonNull CtrlStore store, int row) {
+            mCtrlMarkerManager.putCtrl(store, row);
+        }
+
+        @Override
+        public void onCluster(long key, double latitude, double longitude, int count) {
+            mCtrlMarkerManager.putCluster(key, latitude, longitude, count);
+        }
+    };
+
+    /**
+     * Builds the cluster index of all ctrls in the background, the map falls back to radius queries
+     * on the database until it's done. A build which has been overtaken by a newer one, e.g. after
+     * the data set changed, is dropped.
+     */
+    private void buildClusterIndex(@NonNull final DatabaseCtrls databaseCtrls) {
+        if (getActivity() == null) {
+            return;
+        }
+        final Context context = getActivity().getApplicationContext();
+        final int generation = ++mClusterIndexGeneration;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CtrlStore store;
+                try {
+                    store = BinaryCtrlIndex.open(context, databaseCtrls.getDatasetVersion()).toCtrlStore();
+                } catch (IOException e) {
+                    Log.w(TAG, "buildClusterIndex: no ctrl index, using the database. " + e.getMessage());
+                    store = databaseCtrls.getCtrlStore();
+                }
+                long start = System.currentTimeMillis();
+                final CtrlClusterIndex ctrlClusterIndex = new CtrlClusterIndex(store);
+                Log.i(TAG, "buildClusterIndex: " + store.size() + " ctrls in " + (System.currentTimeMillis() - start) + " ms.");
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mClusterIndexGeneration) {
+                            return;
+                        }
+                        mCtrlClusterIndex = ctrlClusterIndex;
+                        // the markers are matched by key only, their counts and positions are from the old index
+                        if (mCtrlMarkerManager != null) {
+                            mCtrlMarkerManager.clear();
+                        }
+                        if (mGoogleMap != null && isAdded()) {
+                            updateMap();
+                        }
+                    }
+                });
+            }
+        }, "CtrlClusterIndex").start();
+    }
+
+    /**
+     * Gets the (cached) icon of a cluster. Counts are bucketed, so only a few dozen icons are ever
+     * drawn.
+     */
+    private BitmapDescriptor getClusterIcon(int count) {
+        int bucket = count < 10 ? count
+                : count < 100 ? count / 10 * 10
+                : count < 1000 ? count / 100 * 100
+                : count / 1000 * 1000;
+        BitmapDescriptor icon = mClusterIcons.get(bucket);
+        if (icon == null) {
+            String label = bucket < 10 ? String.valueOf(bucket) : bucket < 1000 ? bucket + "+" : (bucket / 1000) + "k+";
+            int size = (int) (CLUSTER_ICON_SIZE_DP * getResources().getDisplayMetrics().density);
+            Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(ContextCompat.getColor(getActivity(), R.color.map_ctrls_circle));
+            canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+            paint.setColor(Color.WHITE);
+            paint.setTextSize(size / 3f);
+            paint.setTextAlign(Paint.Align.CENTER);
+            canvas.drawText(label, size / 2f, size / 2f - (paint.descent() + paint.ascent()) / 2f, paint);
+            icon = BitmapDescriptorFactory.fromBitmap(bitmap);
+            mClusterIcons.put(bucket, icon);
+        }
+        return icon;
+    }
+
+    private String getSnippet(int speed) {
+        if (speed == 0) return null;
+        return getString(R.string.max) + " " + speed + getString(R.string.kmh);
     }
 
     private double zoomToDistFactor(double z) {
@@ -20,6 +20,7 @@ import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
+import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -34,6 +35,10 @@ import io.celox.app.libredrive2.R;
 import io.celox.app.libredrive2.dialogs.DialogChangelog;
 import io.celox.app.libredrive2.utils.AesConst;
 import io.celox.app.libredrive2.utils.Const;
+import io.celox.app.libredrive2.utils.CtrlDeltaApplier;
+import io.celox.app.libredrive2.utils.CtrlImporter;
+import io.celox.app.libredrive2.utils.DatabaseCtrls;
+import io.celox.app.libredrive2.utils.StartupPipeline;
 import io.celox.app.libredrive2.utils.Utils;
 
 /**
@@ -62,6 +67,8 @@ public class SettingsFragment extends
         addPrefIcons();
         addChangelogPref();
         addBuildPref();
+        addImportCtrlsPref();
+        addUpdateCtrlsPref();
 
         findPreference(getString(R.string.TOUCH_TWICE_TO_EXIT)).setOnPreferenceClickListener(this);
         findPreference(getString(R.string.PLAY_NOTIFICATION)).setOnPreferenceClickListener(this);
@@ -166,6 +173,85 @@ public class SettingsFragment extends
         }
     }
 
+    private void addImportCtrlsPref() {
+        final Preference p = findPreference(getString(R.string.IMPORT_CTRLS));
+
+        p.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                DatabaseCtrls databaseCtrls = StartupPipeline.getInstance().getDatabaseCtrls();
+                if (databaseCtrls == null || getActivity() == null) {
+                    return true;
+                }
+                p.setEnabled(false);
+                new CtrlImporter(databaseCtrls).download(getString(R.string.ctrl_feed_url),
+                        getActivity().getCacheDir(), true, new CtrlImporter.Listener() {
+                            @Override
+                            public void onProgress(int rows, int rowsPerSecond) {
+                                if (isAdded()) {
+                                    p.setSummary(getString(R.string.pref_sum_import_ctrls_progress, rows, rowsPerSecond));
+                                }
+                            }
+
+                            @Override
+                            public void onDone(int rows, int removed, long durationInMillis) {
+                                Log.i(TAG, "onDone: " + rows + " imported, " + removed + " removed in " + durationInMillis + " ms");
+                                if (isAdded()) {
+                                    p.setSummary(getString(R.string.pref_sum_import_ctrls_progress, rows,
+                                            (int) (rows * 1000L / Math.max(1L, durationInMillis))));
+                                }
+                                p.setEnabled(true);
+                            }
+
+                            @Override
+                            public void onError(@NonNull Throwable throwable) {
+                                if (isAdded()) {
+                                    p.setSummary(getString(R.string.import_ctrls_failed, throwable.getMessage()));
+                                }
+                                p.setEnabled(true);
+                            }
+                        });
+                return true;
+            }
+        });
+    }
+
+    private void addUpdateCtrlsPref() {
+        final Preference p = findPreference(getString(R.string.UPDATE_CTRLS));
+
+        p.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                DatabaseCtrls databaseCtrls = StartupPipeline.getInstance().getDatabaseCtrls();
+                if (databaseCtrls == null || getActivity() == null) {
+                    return true;
+                }
+                p.setEnabled(false);
+                new CtrlImporter(databaseCtrls).downloadDelta(getString(R.string.ctrl_delta_url),
+                        getActivity().getCacheDir(), new CtrlDeltaApplier.Listener() {
+                            @Override
+                            public void onApplied(int datasetVersion, long durationInMillis) {
+                                Log.i(TAG, "onApplied: data set version " + datasetVersion + " in " + durationInMillis + " ms");
+                                if (isAdded()) {
+                                    p.setSummary(getString(R.string.pref_sum_update_ctrls_done, datasetVersion,
+                                            (int) durationInMillis));
+                                }
+                                p.setEnabled(true);
+                            }
+
+                            @Override
+                            public void onError(@NonNull Throwable throwable) {
+                                if (isAdded()) {
+                                    p.setSummary(getString(R.string.update_ctrls_failed, throwable.getMessage()));
+                                }
+                                p.setEnabled(true);
+                            }
+                        });
+                return true;
+            }
+        });
+    }
+
     private double mLastClickedBuild = 0;
     private int mHiddenCounter = 0;
 
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.index;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.support.annotation.NonNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import io.celox.app.libredrive2.utils.Const;
+
+/**
+ * Read-only view on the ctrl index which is compiled from ctrls.db at build time (see the
+ * buildCtrlIndex task). The asset is stored uncompressed and memory-mapped, so opening it costs
+ * no parsing and queries don't allocate per row.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class BinaryCtrlIndex {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "BinaryCtrlIndex";
+
+    private static final int MAGIC = 0x5844494C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final double FIXED_POINT_SCALE = 1e6;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+
+    private final int mDatasetVersion;
+    private final int mSize;
+    private final int mBlockSize;
+    private final int mBlockCount;
+
+    private final int mLatitudes;
+    private final int mLongitudes;
+    private final int mIds;
+    private final int mSpeeds;
+    private final int mDescriptions;
+    private final int mTypes;
+    private final int mDictionaryOffsets;
+    private final int mDictionaryBytes;
+
+    private final String[] mDictionary;
+
+    /**
+     * Maps the index asset.
+     *
+     * @param context the context
+     * @return the index
+     * @throws IOException if the asset is missing or invalid
+     */
+    public static BinaryCtrlIndex open(@NonNull Context context) throws IOException {
+        AssetFileDescriptor afd = context.getAssets().openFd(Const.CTRL_INDEX_ASSET);
+        FileInputStream in = afd.createInputStream();
+        try {
+            FileChannel channel = in.getChannel();
+            return new BinaryCtrlIndex(channel.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength()));
+        } finally {
+            in.close();
+            afd.close();
+        }
+    }
+
+    /**
+     * Maps the index asset, if it has been compiled from the given data set.
+     *
+     * @param context        the context
+     * @param datasetVersion the version of the data set in the database
+     * @return the index
+     * @throws IOException if the asset is missing, invalid or outdated
+     */
+    public static BinaryCtrlIndex open(@NonNull Context context, int datasetVersion) throws IOException {
+        BinaryCtrlIndex index = open(context);
+        if (index.getDatasetVersion() != datasetVersion) {
+            throw new IOException("Ctrl index is outdated (index " + index.getDatasetVersion() + ", database "
+                    + datasetVersion + ").");
+        }
+        return index;
+    }
+
+    /**
+     * Instantiates a new index on top of the given buffer.
+     *
+     * @param buffer the buffer holding the index
+     * @throws IOException if the buffer holds no valid index
+     */
+    public BinaryCtrlIndex(@NonNull ByteBuffer buffer) throws IOException {
+        mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Invalid ctrl index.");
+        }
+        mDatasetVersion = mBuffer.getInt(8);
+        mSize = mBuffer.getInt(12);
+        mBlockSize = mBuffer.getInt(16);
+        mBlockCount = mBuffer.getInt(20);
+        int dictionarySize = mBuffer.getInt(24);
+
+        mLatitudes = HEADER_SIZE + mBlockCount * 16;
+        mLongitudes = mLatitudes + mSize * 4;
+        mIds = mLongitudes + mSize * 4;
+        mSpeeds = mIds + mSize * 4;
+        mDescriptions = mSpeeds + mSize * 2;
+        mTypes = mDescriptions + mSize * 2;
+        mDictionaryOffsets = mTypes + ((mSize + 3) & ~3);
+        mDictionaryBytes = mDictionaryOffsets + (dictionarySize + 1) * 4;
+
+        mDictionary = new String[dictionarySize];
+    }
+
+    /**
+     * Gets the version of the data set the index was compiled from.
+     *
+     * @return the data set version
+     */
+    public int getDatasetVersion() {
+        return mDatasetVersion;
+    }
+
+    /**
+     * Gets the number of ctrls.
+     *
+     * @return the size
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the id.
+     *
+     * @param row the row
+     * @return the id
+     */
+    public int getId(int row) {
+        return mBuffer.getInt(mIds + row * 4);
+    }
+
+    /**
+     * Gets the latitude.
+     *
+     * @param row the row
+     * @return the latitude
+     */
+    public double getLatitude(int row) {
+        return mBuffer.getInt(mLatitudes + row * 4) / FIXED_POINT_SCALE;
+    }
+
+    /**
+     * Gets the longitude.
+     *
+     * @param row the row
+     * @return the longitude
+     */
+    public double getLongitude(int row) {
+        return mBuffer.getInt(mLongitudes + row * 4) / FIXED_POINT_SCALE;
+    }
+
+    /**
+     * Gets the speed.
+     *
+     * @param row the row
+     * @return the speed in km/h
+     */
+    public int getSpeed(int row) {
+        return mBuffer.getShort(mSpeeds + row * 2);
+    }
+
+    /**
+     * Gets the type.
+     *
+     * @param row the row
+     * @return the type
+     */
+    public int getType(int row) {
+        return mBuffer.get(mTypes + row);
+    }
+
+    /**
+     * Gets the description, the dictionary entry is decoded on first use.
+     *
+     * @param row the row
+     * @return the description
+     */
+    @NonNull
+    public String getDescription(int row) {
+        int index = mBuffer.getShort(mDescriptions + row * 2) & 0xFFFF;
+        String description = mDictionary[index];
+        if (description == null) {
+            int from = mBuffer.getInt(mDictionaryOffsets + index * 4);
+            int to = mBuffer.getInt(mDictionaryOffsets + (index + 1) * 4);
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = mBuffer.get(mDictionaryBytes + from + i);
+            }
+            description = new String(bytes, UTF_8);
+            mDictionary[index] = description;
+        }
+        return description;
+    }
+
+    /**
+     * Copies all ctrls into a {@link CtrlStore}, used to build the in-memory index.
+     *
+     * @return the store
+     */
+    @NonNull
+    public CtrlStore toCtrlStore() {
+        CtrlStore store = new CtrlStore(mSize);
+        for (int row = 0; row < mSize; row++) {
+            store.add(getId(row), getLatitude(row), getLongitude(row), getSpeed(row), getType(row), getDescription(row));
+        }
+        return store;
+    }
+
+    /**
+     * Copies the ctrls inside the square around the position into a {@link CtrlStore}. Only the
+     * blocks which intersect the square are scanned.
+     *
+     * @param latitude      the latitude
+     * @param longitude     the longitude
+     * @param rangeInMeters half the edge of the square
+     * @return the store
+     */
+    @NonNull
+    public CtrlStore loadArea(double latitude, double longitude, int rangeInMeters) {
+        double deltaLat = rangeInMeters / 1000.0 / 110.574235;
+        double deltaLng = rangeInMeters / 1000.0 / (110.572833 * Math.cos(Math.toRadians(latitude)));
+        int minLat = (int) Math.floor((latitude - deltaLat) * FIXED_POINT_SCALE);
+        int maxLat = (int) Math.ceil((latitude + deltaLat) * FIXED_POINT_SCALE);
+        int minLng = (int) Math.floor((longitude - deltaLng) * FIXED_POINT_SCALE);
+        int maxLng = (int) Math.ceil((longitude + deltaLng) * FIXED_POINT_SCALE);
+
+        CtrlStore store = new CtrlStore(mBlockSize);
+        for (int block = 0; block < mBlockCount; block++) {
+            int box = HEADER_SIZE + block * 16;
+            if (mBuffer.getInt(box) > maxLat || mBuffer.getInt(box + 4) < minLat
+                    || mBuffer.getInt(box + 8) > maxLng || mBuffer.getInt(box + 12) < minLng) {
+                continue;
+            }
+            int to = Math.min(mSize, (block + 1) * mBlockSize);
+            for (int row = block * mBlockSize; row < to; row++) {
+                int rowLat = mBuffer.getInt(mLatitudes + row * 4);
+                int rowLng = mBuffer.getInt(mLongitudes + row * 4);
+                if (rowLat >= minLat && rowLat <= maxLat && rowLng >= minLng && rowLng <= maxLng) {
+                    store.add(getId(row), getLatitude(row), getLongitude(row), getSpeed(row), getType(row),
+                            getDescription(row));
+                }
+            }
+        }
+        return store;
+    }
+}
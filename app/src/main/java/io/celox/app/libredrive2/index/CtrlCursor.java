@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.index;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Reusable result buffer of a query on a {@link CtrlStore}. Holds the matching rows and their
+ * distances, and reads like an android {@link android.database.Cursor}. Keep one instance per
+ * caller and pass it to every query, so queries don't allocate.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlCursor {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "CtrlCursor";
+
+    private CtrlStore mStore;
+    private int[] mRows;
+    private double[] mDistances;
+    private int mCount = 0;
+    private int mPosition = -1;
+
+    /**
+     * Instantiates a new cursor.
+     *
+     * @param capacity the initial capacity, grows when needed
+     */
+    public CtrlCursor(int capacity) {
+        mRows = new int[Math.max(capacity, 1)];
+        mDistances = new double[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Clears the cursor before it is filled by a query.
+     *
+     * @param store the store the rows belong to
+     */
+    public void reset(@NonNull CtrlStore store) {
+        mStore = store;
+        mCount = 0;
+        mPosition = -1;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param row      the row in the store
+     * @param distance the distance in meters (or any other sort key)
+     */
+    public void add(int row, double distance) {
+        if (mCount == mRows.length) {
+            mRows = Arrays.copyOf(mRows, mCount * 2);
+            mDistances = Arrays.copyOf(mDistances, mCount * 2);
+        }
+        mRows[mCount] = row;
+        mDistances[mCount] = distance;
+        mCount++;
+    }
+
+    /**
+     * Replaces the row at the given position.
+     *
+     * @param position the position
+     * @param row      the row in the store
+     * @param distance the distance
+     */
+    public void set(int position, int row, double distance) {
+        mRows[position] = row;
+        mDistances[position] = distance;
+    }
+
+    /**
+     * Swaps two positions.
+     *
+     * @param a the first position
+     * @param b the second position
+     */
+    public void swap(int a, int b) {
+        int row = mRows[a];
+        mRows[a] = mRows[b];
+        mRows[b] = row;
+        double distance = mDistances[a];
+        mDistances[a] = mDistances[b];
+        mDistances[b] = distance;
+    }
+
+    /**
+     * Drops all rows from the given position on.
+     *
+     * @param count the new count
+     */
+    public void truncate(int count) {
+        mCount = Math.min(mCount, count);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public boolean moveToPosition(int position) {
+        if (position < -1 || position >= mCount) {
+            return false;
+        }
+        mPosition = position;
+        return true;
+    }
+
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    public CtrlStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Gets the row in the store at the given position.
+     *
+     * @param position the position
+     * @return the row
+     */
+    public int getRow(int position) {
+        return mRows[position];
+    }
+
+    /**
+     * Gets the distance at the given position.
+     *
+     * @param position the position
+     * @return the distance
+     */
+    public double getDistance(int position) {
+        return mDistances[position];
+    }
+
+    public int getRow() {
+        return mRows[mPosition];
+    }
+
+    public double getDistance() {
+        return mDistances[mPosition];
+    }
+
+    public int getId() {
+        return mStore.getId(mRows[mPosition]);
+    }
+
+    public double getLatitude() {
+        return mStore.getLatitude(mRows[mPosition]);
+    }
+
+    public double getLongitude() {
+        return mStore.getLongitude(mRows[mPosition]);
+    }
+
+    public int getSpeed() {
+        return mStore.getSpeed(mRows[mPosition]);
+    }
+
+    public int getType() {
+        return mStore.getType(mRows[mPosition]);
+    }
+
+    @NonNull
+    public String getDescription() {
+        return mStore.getDescription(mRows[mPosition]);
+    }
+}
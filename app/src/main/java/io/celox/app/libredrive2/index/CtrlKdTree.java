@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.index;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Static kd-tree over a {@link CtrlStore}, built once and queried on every GPS fix.
+ * <p>
+ * Positions are stored as unit vectors on the sphere, so the euclidean (chord) distance orders
+ * exactly like the great-circle distance and no projection error creeps into the results.
+ * The tree is implicit: the median of every range is its node, no node objects are allocated.
+ * Queries write into a {@link CtrlCursor}, which doubles as the candidate heap while searching.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlKdTree {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "CtrlKdTree";
+
+    private final CtrlStore mStore;
+    private final int[] mRows;
+    private final double[] mX;
+    private final double[] mY;
+    private final double[] mZ;
+
+    /* the parameters of the running ahead query, reused so a fix doesn't allocate */
+    private final Kernel mKernel = new Kernel();
+
+    /**
+     * Instantiates a new kd-tree.
+     *
+     * @param store the ctrls to index
+     */
+    public CtrlKdTree(@NonNull CtrlStore store) {
+        int size = store.size();
+        mStore = store;
+        mRows = new int[size];
+        mX = new double[size];
+        mY = new double[size];
+        mZ = new double[size];
+        for (int i = 0; i < size; i++) {
+            double lat = Math.toRadians(store.getLatitude(i));
+            double lng = Math.toRadians(store.getLongitude(i));
+            mRows[i] = i;
+            mX[i] = Math.cos(lat) * Math.cos(lng);
+            mY[i] = Math.cos(lat) * Math.sin(lng);
+            mZ[i] = Math.sin(lat);
+        }
+        build(0, size, 0);
+    }
+
+    /**
+     * Gets the indexed store.
+     *
+     * @return the store
+     */
+    @NonNull
+    public CtrlStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Gets the number of indexed ctrls.
+     *
+     * @return the size
+     */
+    public int size() {
+        return mRows.length;
+    }
+
+    /**
+     * Gets the k closest ctrls, sorted by distance.
+     *
+     * @param latitude  the latitude
+     * @param longitude the longitude
+     * @param k         the maximum number of ctrls
+     * @param cursor    receives the rows and their distances in meters
+     * @return the number of ctrls found
+     */
+    public int nearest(double latitude, double longitude, int k, @NonNull CtrlCursor cursor) {
+        cursor.reset(mStore);
+        if (k > 0) {
+            double lat = Math.toRadians(latitude);
+            double lng = Math.toRadians(longitude);
+            double x = Math.cos(lat) * Math.cos(lng);
+            double y = Math.cos(lat) * Math.sin(lng);
+            double z = Math.sin(lat);
+            searchNearest(0, mRows.length, 0, x, y, z, k, cursor);
+        }
+        return finish(cursor);
+    }
+
+    /**
+     * Gets all ctrls within the given radius, sorted by distance.
+     *
+     * @param latitude       the latitude
+     * @param longitude      the longitude
+     * @param radiusInMeters the radius
+     * @param cursor         receives the rows and their distances in meters
+     * @return the number of ctrls found
+     */
+    public int withinRadius(double latitude, double longitude, int radiusInMeters, @NonNull CtrlCursor cursor) {
+        cursor.reset(mStore);
+        double chord = 2d * Math.sin(Math.min(radiusInMeters / GeoMath.EARTH_RADIUS_IN_METERS, Math.PI) / 2d);
+        double lat = Math.toRadians(latitude);
+        double lng = Math.toRadians(longitude);
+        double x = Math.cos(lat) * Math.cos(lng);
+        double y = Math.cos(lat) * Math.sin(lng);
+        double z = Math.sin(lat);
+        searchRadius(0, mRows.length, 0, x, y, z, chord * chord, cursor);
+        for (int i = cursor.getCount() / 2 - 1; i >= 0; i--) {
+            siftDown(cursor, i, cursor.getCount());
+        }
+        return finish(cursor);
+    }
+
+    /**
+     * Gets the k closest ctrls within the given radius which lie inside the forward cone around the
+     * bearing, sorted by the distance along the track. Ctrls behind the vehicle or off to the side
+     * are dropped, so a ctrl which has been passed is never reported again.
+     * <p>
+     * The cone test and the along-track distance are dot products of the unit vectors with the
+     * track direction and its normal, so no trigonometry is done per candidate. The along-track
+     * distance is the sine of the angle, which falls short by about R * angle^3 / 6: less than
+     * 0.3 mm within the 4 km lookahead, about 4 mm at 10 km.
+     * The parameters are kept in a single {@link Kernel}, so the method must not be called from
+     * two threads at the same time.
+     *
+     * @param latitude       the latitude
+     * @param longitude      the longitude
+     * @param bearing        the bearing in degrees, clockwise from north
+     * @param halfAngle      the half opening angle of the cone in degrees
+     * @param radiusInMeters the radius
+     * @param k              the maximum number of ctrls
+     * @param cursor         receives the rows and their along-track distances in meters
+     * @return the number of ctrls found
+     */
+    public int ahead(double latitude, double longitude, float bearing, float halfAngle, int radiusInMeters, int k,
+                     @NonNull CtrlCursor cursor) {
+        cursor.reset(mStore);
+        if (k <= 0) {
+            return 0;
+        }
+        double lat = Math.toRadians(latitude);
+        double lng = Math.toRadians(longitude);
+        double sinLat = Math.sin(lat), cosLat = Math.cos(lat);
+        double sinLng = Math.sin(lng), cosLng = Math.cos(lng);
+        double sinBearing = Math.sin(Math.toRadians(bearing));
+        double cosBearing = Math.cos(Math.toRadians(bearing));
+
+        // the track direction and its normal in the tangent plane, north * cos + east * sin
+        Kernel kernel = mKernel;
+        kernel.x = cosLat * cosLng;
+        kernel.y = cosLat * sinLng;
+        kernel.z = sinLat;
+        kernel.trackX = -sinLat * cosLng * cosBearing - sinLng * sinBearing;
+        kernel.trackY = -sinLat * sinLng * cosBearing + cosLng * sinBearing;
+        kernel.trackZ = cosLat * cosBearing;
+        kernel.normalX = -sinLng * cosBearing + sinLat * cosLng * sinBearing;
+        kernel.normalY = cosLng * cosBearing + sinLat * sinLng * sinBearing;
+        kernel.normalZ = -cosLat * sinBearing;
+        kernel.tanHalfAngle = Math.tan(Math.toRadians(halfAngle));
+        double chord = 2d * Math.sin(Math.min(radiusInMeters / GeoMath.EARTH_RADIUS_IN_METERS, Math.PI) / 2d);
+        kernel.maxSquared = chord * chord;
+        kernel.k = k;
+
+        searchAhead(0, mRows.length, 0, kernel, cursor);
+        int count = sort(cursor);
+        for (int i = 0; i < count; i++) {
+            cursor.set(i, cursor.getRow(i), cursor.getDistance(i) * GeoMath.EARTH_RADIUS_IN_METERS);
+        }
+        return count;
+    }
+
+    /**
+     * The parameters of {@link #ahead}, unit vectors on the sphere.
+     */
+    private static class Kernel {
+        double x, y, z;
+        double trackX, trackY, trackZ;
+        double normalX, normalY, normalZ;
+        double tanHalfAngle;
+        double maxSquared;
+        int k;
+    }
+
+    private void build(int from, int to, int axis) {
+        if (to - from < 2) {
+            return;
+        }
+        int median = (from + to) >>> 1;
+        select(from, to - 1, median, axis);
+        int next = (axis + 1) % 3;
+        build(from, median, next);
+        build(median + 1, to, next);
+    }
+
+    /**
+     * Quickselect, moves the k-th smallest element on the given axis to position k.
+     */
+    private void select(int left, int right, int k, int axis) {
+        double[] values = axis == 0 ? mX : axis == 1 ? mY : mZ;
+        while (right > left) {
+            double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int row = mRows[i];
+        mRows[i] = mRows[j];
+        mRows[j] = row;
+        double tmp = mX[i];
+        mX[i] = mX[j];
+        mX[j] = tmp;
+        tmp = mY[i];
+        mY[i] = mY[j];
+        mY[j] = tmp;
+        tmp = mZ[i];
+        mZ[i] = mZ[j];
+        mZ[j] = tmp;
+    }
+
+    private void searchNearest(int from, int to, int axis, double x, double y, double z, int k, CtrlCursor heap) {
+        if (from >= to) {
+            return;
+        }
+        int median = (from + to) >>> 1;
+        offer(heap, k, mRows[median], squaredDistance(median, x, y, z));
+
+        double delta = (axis == 0 ? x - mX[median] : axis == 1 ? y - mY[median] : z - mZ[median]);
+        int next = (axis + 1) % 3;
+        if (delta < 0) {
+            searchNearest(from, median, next, x, y, z, k, heap);
+            if (heap.getCount() < k || delta * delta < heap.getDistance(0)) {
+                searchNearest(median + 1, to, next, x, y, z, k, heap);
+            }
+        } else {
+            searchNearest(median + 1, to, next, x, y, z, k, heap);
+            if (heap.getCount() < k || delta * delta < heap.getDistance(0)) {
+                searchNearest(from, median, next, x, y, z, k, heap);
+            }
+        }
+    }
+
+    private void searchRadius(int from, int to, int axis, double x, double y, double z, double maxSquared, CtrlCursor out) {
+        if (from >= to) {
+            return;
+        }
+        int median = (from + to) >>> 1;
+        double d = squaredDistance(median, x, y, z);
+        if (d <= maxSquared) {
+            out.add(mRows[median], d);
+        }
+
+        double delta = (axis == 0 ? x - mX[median] : axis == 1 ? y - mY[median] : z - mZ[median]);
+        int next = (axis + 1) % 3;
+        if (delta <= 0 || delta * delta <= maxSquared) {
+            searchRadius(from, median, next, x, y, z, maxSquared, out);
+        }
+        if (delta >= 0 || delta * delta <= maxSquared) {
+            searchRadius(median + 1, to, next, x, y, z, maxSquared, out);
+        }
+    }
+
+    private void searchAhead(int from, int to, int axis, Kernel kernel, CtrlCursor heap) {
+        if (from >= to) {
+            return;
+        }
+        int median = (from + to) >>> 1;
+        if (squaredDistance(median, kernel.x, kernel.y, kernel.z) <= kernel.maxSquared) {
+            double alongTrack = mX[median] * kernel.trackX + mY[median] * kernel.trackY + mZ[median] * kernel.trackZ;
+            double crossTrack = mX[median] * kernel.normalX + mY[median] * kernel.normalY + mZ[median] * kernel.normalZ;
+            if (alongTrack > 0d && Math.abs(crossTrack) <= alongTrack * kernel.tanHalfAngle) {
+                offer(heap, kernel.k, mRows[median], alongTrack);
+            }
+        }
+
+        double delta = (axis == 0 ? kernel.x - mX[median] : axis == 1 ? kernel.y - mY[median] : kernel.z - mZ[median]);
+        int next = (axis + 1) % 3;
+        if (delta <= 0 || delta * delta <= kernel.maxSquared) {
+            searchAhead(from, median, next, kernel, heap);
+        }
+        if (delta >= 0 || delta * delta <= kernel.maxSquared) {
+            searchAhead(median + 1, to, next, kernel, heap);
+        }
+    }
+
+    private double squaredDistance(int i, double x, double y, double z) {
+        double dx = mX[i] - x;
+        double dy = mY[i] - y;
+        double dz = mZ[i] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Offers a candidate to the max-heap of the k best rows.
+     */
+    private static void offer(CtrlCursor heap, int k, int row, double distance) {
+        int count = heap.getCount();
+        if (count < k) {
+            heap.add(row, distance);
+            siftUp(heap, count);
+        } else if (distance < heap.getDistance(0)) {
+            heap.set(0, row, distance);
+            siftDown(heap, 0, count);
+        }
+    }
+
+    private static void siftUp(CtrlCursor heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap.getDistance(parent) >= heap.getDistance(i)) {
+                return;
+            }
+            heap.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(CtrlCursor heap, int i, int size) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            int right = left + 1;
+            int largest = right < size && heap.getDistance(right) > heap.getDistance(left) ? right : left;
+            if (heap.getDistance(i) >= heap.getDistance(largest)) {
+                return;
+            }
+            heap.swap(i, largest);
+            i = largest;
+        }
+    }
+
+    /**
+     * Sorts the heap in place (ascending).
+     */
+    private static int sort(CtrlCursor heap) {
+        int count = heap.getCount();
+        for (int end = count - 1; end > 0; end--) {
+            heap.swap(0, end);
+            siftDown(heap, 0, end);
+        }
+        return count;
+    }
+
+    /**
+     * Sorts the heap in place (ascending) and converts the squared chords to meters.
+     */
+    private static int finish(CtrlCursor heap) {
+        int count = sort(heap);
+        for (int i = 0; i < count; i++) {
+            double chord = Math.sqrt(heap.getDistance(i));
+            heap.set(i, heap.getRow(i), 2d * Math.asin(Math.min(1d, chord / 2d)) * GeoMath.EARTH_RADIUS_IN_METERS);
+        }
+        return count;
+    }
+}
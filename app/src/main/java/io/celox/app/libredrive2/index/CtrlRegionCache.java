@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.index;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the ctrls of a large region around the vehicle in memory, so consecutive fixes don't hit
+ * the backing store. When the vehicle gets close to the edge of the region, the next region
+ * (centered at the current position) is loaded in the background and swapped in once the current
+ * one no longer covers the query.
+ * <p>
+ * {@link #get} is meant to be called from a single thread.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlRegionCache {
+
+    private static final String TAG = "CtrlRegionCache";
+
+    /**
+     * Loads all ctrls around a position.
+     */
+    public interface Loader {
+
+        /**
+         * Loads the ctrls.
+         *
+         * @param latitude       the latitude
+         * @param longitude      the longitude
+         * @param radiusInMeters the radius
+         * @return the ctrls, at least those within the radius
+         */
+        @NonNull
+        CtrlStore load(double latitude, double longitude, int radiusInMeters);
+    }
+
+    private static class Region {
+
+        final double latitude;
+        final double longitude;
+        final CtrlKdTree ctrlKdTree;
+
+        Region(double latitude, double longitude, CtrlKdTree ctrlKdTree) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.ctrlKdTree = ctrlKdTree;
+        }
+    }
+
+    private final Loader mLoader;
+    private final int mRadius;
+    private final int mPrefetchMargin;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean mPrefetching = new AtomicBoolean(false);
+
+    private Region mRegion;
+    private volatile Region mNextRegion;
+
+    /**
+     * Instantiates a new region cache.
+     *
+     * @param loader         the backing store
+     * @param radiusInMeters the radius of a region
+     * @param prefetchMargin start loading the next region when the query gets this close to the edge
+     */
+    public CtrlRegionCache(@NonNull Loader loader, int radiusInMeters, int prefetchMargin) {
+        mLoader = loader;
+        mRadius = radiusInMeters;
+        mPrefetchMargin = prefetchMargin;
+    }
+
+    /**
+     * Gets the kd-tree of a region which covers the query circle. Loads synchronously only if
+     * neither the current nor the prefetched region covers it (first fix, jumps).
+     *
+     * @param latitude       the latitude
+     * @param longitude      the longitude
+     * @param radiusInMeters the radius of the query
+     * @return the kd-tree, or null if loading failed
+     */
+    @Nullable
+    public CtrlKdTree get(double latitude, double longitude, int radiusInMeters) {
+        Region region = mRegion;
+        if (!covers(region, latitude, longitude, radiusInMeters)) {
+            Region next = mNextRegion;
+            if (covers(next, latitude, longitude, radiusInMeters)) {
+                region = next;
+            } else {
+                Log.i(TAG, "get: region missed, loading synchronously.");
+                region = load(latitude, longitude);
+            }
+            mRegion = region;
+            mNextRegion = null;
+        }
+        if (region == null) {
+            return null;
+        }
+
+        double offset = GeoMath.distance(region.latitude, region.longitude, latitude, longitude);
+        if (offset + radiusInMeters > mRadius - mPrefetchMargin
+                && !covers(mNextRegion, latitude, longitude, radiusInMeters + mPrefetchMargin)) {
+            prefetch(latitude, longitude);
+        }
+        return region.ctrlKdTree;
+    }
+
+    /**
+     * Drops all regions, e.g. after the backing store changed.
+     */
+    public void invalidate() {
+        mRegion = null;
+        mNextRegion = null;
+    }
+
+    /**
+     * Stops the prefetch thread.
+     */
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    private boolean covers(@Nullable Region region, double latitude, double longitude, int radiusInMeters) {
+        return region != null
+                && GeoMath.distance(region.latitude, region.longitude, latitude, longitude) + radiusInMeters <= mRadius;
+    }
+
+    private void prefetch(final double latitude, final double longitude) {
+        if (!mPrefetching.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mNextRegion = load(latitude, longitude);
+                    } finally {
+                        mPrefetching.set(false);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            mPrefetching.set(false);
+            Log.w(TAG, "prefetch: " + e.getMessage());
+        }
+    }
+
+    @Nullable
+    private Region load(double latitude, double longitude) {
+        try {
+            long start = System.currentTimeMillis();
+            CtrlStore store = mLoader.load(latitude, longitude, mRadius);
+            CtrlKdTree ctrlKdTree = new CtrlKdTree(store);
+            Log.i(TAG, "load: " + store.size() + " ctrls in " + (System.currentTimeMillis() - start) + " ms.");
+            return new Region(latitude, longitude, ctrlKdTree);
+        } catch (Exception e) {
+            Log.e(TAG, "load: ", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.index;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Ctrls stored as parallel primitive arrays, addressed by row. Replaces one {@link
+ * io.celox.app.libredrive2.model.Ctrl} (plus LatLng) per ctrl wherever many ctrls are held or
+ * scanned.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlStore {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "CtrlStore";
+
+    private int mSize = 0;
+    private int[] mIds;
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private int[] mSpeeds;
+    private int[] mTypes;
+    private String[] mDescriptions;
+
+    /**
+     * Instantiates a new store.
+     *
+     * @param capacity the initial capacity
+     */
+    public CtrlStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mIds = new int[capacity];
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mSpeeds = new int[capacity];
+        mTypes = new int[capacity];
+        mDescriptions = new String[capacity];
+    }
+
+    /**
+     * Appends a ctrl.
+     *
+     * @param id          the id
+     * @param latitude    the latitude
+     * @param longitude   the longitude
+     * @param speed       the speed in km/h
+     * @param type        the type
+     * @param description the description
+     * @return the row of the ctrl
+     */
+    public int add(int id, double latitude, double longitude, int speed, int type, @NonNull String description) {
+        if (mSize == mIds.length) {
+            int capacity = mSize * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mSpeeds = Arrays.copyOf(mSpeeds, capacity);
+            mTypes = Arrays.copyOf(mTypes, capacity);
+            mDescriptions = Arrays.copyOf(mDescriptions, capacity);
+        }
+        mIds[mSize] = id;
+        mLatitudes[mSize] = latitude;
+        mLongitudes[mSize] = longitude;
+        mSpeeds[mSize] = speed;
+        mTypes[mSize] = type;
+        mDescriptions[mSize] = description;
+        return mSize++;
+    }
+
+    /**
+     * Gets the number of ctrls.
+     *
+     * @return the size
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the id.
+     *
+     * @param row the row
+     * @return the id
+     */
+    public int getId(int row) {
+        return mIds[row];
+    }
+
+    /**
+     * Gets the latitude.
+     *
+     * @param row the row
+     * @return the latitude
+     */
+    public double getLatitude(int row) {
+        return mLatitudes[row];
+    }
+
+    /**
+     * Gets the longitude.
+     *
+     * @param row the row
+     * @return the longitude
+     */
+    public double getLongitude(int row) {
+        return mLongitudes[row];
+    }
+
+    /**
+     * Gets the speed.
+     *
+     * @param row the row
+     * @return the speed in km/h
+     */
+    public int getSpeed(int row) {
+        return mSpeeds[row];
+    }
+
+    /**
+     * Gets the type.
+     *
+     * @param row the row
+     * @return the type
+     */
+    public int getType(int row) {
+        return mTypes[row];
+    }
+
+    /**
+     * Gets the description.
+     *
+     * @param row the row
+     * @return the description
+     */
+    @NonNull
+    public String getDescription(int row) {
+        return mDescriptions[row];
+    }
+}
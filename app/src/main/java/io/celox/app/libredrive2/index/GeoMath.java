@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.index;
+
+/**
+ * Distance math on primitives, free of allocations.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class GeoMath {
+
+    /**
+     * Mean earth radius (IUGG).
+     */
+    public static final double EARTH_RADIUS_IN_METERS = 6371008.8;
+
+    /**
+     * Great-circle distance (haversine).
+     *
+     * @param lat1 the latitude of the first position
+     * @param lng1 the longitude of the first position
+     * @param lat2 the latitude of the second position
+     * @param lng2 the longitude of the second position
+     * @return the distance in meters
+     */
+    public static double distance(double lat1, double lng1, double lat2, double lng2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDeltaPhi = Math.sin((phi2 - phi1) / 2d);
+        double sinDeltaLambda = Math.sin(Math.toRadians(lng2 - lng1) / 2d);
+        double h = sinDeltaPhi * sinDeltaPhi + Math.cos(phi1) * Math.cos(phi2) * sinDeltaLambda * sinDeltaLambda;
+        return 2d * EARTH_RADIUS_IN_METERS * Math.asin(Math.min(1d, Math.sqrt(h)));
+    }
+}
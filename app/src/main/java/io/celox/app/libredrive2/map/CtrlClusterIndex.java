@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.celox.app.libredrive2.map;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import io.celox.app.libredrive2.index.CtrlStore;
+
+/**
+ * Grid clusters of all ctrls for every zoom level of the map, precomputed once.
+ * <p>
+ * The world is divided into cells of {@link #CELL_SIZE_PX} screen pixels (web mercator) per zoom
+ * level. The rows are sorted by the Morton code of their cell at {@link #MAX_ZOOM}, so the rows of
+ * any cell at any lower zoom level are contiguous and every level is just a sorted array of cells.
+ * A query looks up the cells of the visible region, which are never more than a screen's worth.
+ * <p>
+ * The levels double as a count pyramid: {@link #count} sums the counts of the largest cells which
+ * lie completely inside a region and only descends along its border.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlClusterIndex {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "CtrlClusterIndex";
+
+    /**
+     * Above this zoom level single ctrls are shown.
+     */
+    public static final int MAX_ZOOM = 14;
+
+    public static final int CELL_SIZE_PX = 128;
+
+    /**
+     * 2^CELL_BITS cells per axis at zoom level 0 (256 px / {@link #CELL_SIZE_PX}).
+     */
+    private static final int CELL_BITS = 1;
+
+    /**
+     * Levels below the zoom level of the map down to which {@link #count} descends along the border
+     * of the region, 3 is 1/8 of a cell (16 px).
+     */
+    private static final int COUNT_PRECISION_LEVELS = 3;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * Receives the result of a query.
+     */
+    public interface Visitor {
+
+        /**
+         * Called for a ctrl which is alone in its cell, or for every ctrl above {@link #MAX_ZOOM}.
+         */
+        void onCtrl(@NonNull CtrlStore store, int row);
+
+        /**
+         * Called for a cell with more than one ctrl.
+         *
+         * @param key       unique across all zoom levels and never equal to a ctrl id
+         * @param latitude  the latitude of the centroid
+         * @param longitude the longitude of the centroid
+         * @param count     the number of ctrls
+         */
+        void onCluster(long key, double latitude, double longitude, int count);
+    }
+
+    private static class Level {
+
+        long[] cells;
+        int[] starts;
+        int[] counts;
+        double[] latitudes;
+        double[] longitudes;
+    }
+
+    private final CtrlStore mStore;
+    private final int[] mRows;
+    private final Level[] mLevels = new Level[MAX_ZOOM + 1];
+
+    /**
+     * Builds the clusters of all zoom levels.
+     *
+     * @param store the ctrls
+     */
+    public CtrlClusterIndex(@NonNull CtrlStore store) {
+        mStore = store;
+        int size = store.size();
+        int bits = MAX_ZOOM + CELL_BITS;
+
+        // morton code in the upper, row in the lower half, so one primitive sort does it
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            int x = (int) (mercatorX(store.getLongitude(i)) * (1 << bits));
+            int y = (int) (mercatorY(store.getLatitude(i)) * (1 << bits));
+            sorted[i] = (morton(clamp(x, bits), clamp(y, bits)) << 32) | i;
+        }
+        Arrays.sort(sorted);
+
+        mRows = new int[size];
+        long[] cells = new long[size];
+        for (int i = 0; i < size; i++) {
+            mRows[i] = (int) sorted[i];
+            cells[i] = sorted[i] >>> 32;
+        }
+
+        for (int zoom = MAX_ZOOM; zoom >= 0; zoom--) {
+            mLevels[zoom] = buildLevel(cells, 2 * (MAX_ZOOM - zoom));
+        }
+    }
+
+    private Level buildLevel(long[] cells, int shift) {
+        int size = cells.length;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || (cells[i] >>> shift) != (cells[i - 1] >>> shift)) {
+                count++;
+            }
+        }
+
+        Level level = new Level();
+        level.cells = new long[count];
+        level.starts = new int[count];
+        level.counts = new int[count];
+        level.latitudes = new double[count];
+        level.longitudes = new double[count];
+
+        int cluster = -1;
+        for (int i = 0; i < size; i++) {
+            long cell = cells[i] >>> shift;
+            if (cluster < 0 || cell != level.cells[cluster]) {
+                cluster++;
+                level.cells[cluster] = cell;
+                level.starts[cluster] = i;
+            }
+            level.counts[cluster]++;
+            level.latitudes[cluster] += mStore.getLatitude(mRows[i]);
+            level.longitudes[cluster] += mStore.getLongitude(mRows[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            level.latitudes[i] /= level.counts[i];
+            level.longitudes[i] /= level.counts[i];
+        }
+        return level;
+    }
+
+    /**
+     * Gets the indexed store.
+     *
+     * @return the store
+     */
+    @NonNull
+    public CtrlStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Visits the clusters (or ctrls above {@link #MAX_ZOOM}) of the visible region.
+     *
+     * @param zoom    the zoom level of the map
+     * @param south   the southern bound
+     * @param west    the western bound
+     * @param north   the northern bound
+     * @param east    the eastern bound, less than west if the region crosses the antimeridian
+     * @param visitor receives the result
+     */
+    public void query(float zoom, double south, double west, double north, double east, @NonNull Visitor visitor) {
+        int level = Math.max(0, Math.min((int) zoom, MAX_ZOOM));
+        boolean expand = zoom >= MAX_ZOOM + 1;
+        int bits = level + CELL_BITS;
+        int cellsPerAxis = 1 << bits;
+
+        int minX = clamp((int) (mercatorX(west) * cellsPerAxis), bits);
+        int maxX = clamp((int) (mercatorX(east) * cellsPerAxis), bits);
+        int minY = clamp((int) (mercatorY(north) * cellsPerAxis), bits);
+        int maxY = clamp((int) (mercatorY(south) * cellsPerAxis), bits);
+        int columns = ((maxX - minX + cellsPerAxis) & (cellsPerAxis - 1)) + 1;
+
+        Level cells = mLevels[level];
+        for (int column = 0; column < columns; column++) {
+            int x = (minX + column) & (cellsPerAxis - 1);
+            for (int y = minY; y <= maxY; y++) {
+                int cluster = Arrays.binarySearch(cells.cells, morton(x, y));
+                if (cluster < 0) {
+                    continue;
+                }
+                int start = cells.starts[cluster];
+                int count = cells.counts[cluster];
+                if (expand) {
+                    for (int i = start; i < start + count; i++) {
+                        int row = mRows[i];
+                        if (contains(row, south, west, north, east)) {
+                            visitor.onCtrl(mStore, row);
+                        }
+                    }
+                } else if (count == 1) {
+                    visitor.onCtrl(mStore, mRows[start]);
+                } else {
+                    visitor.onCluster((1L << 62) | ((long) level << 56) | cells.cells[cluster],
+                            cells.latitudes[cluster], cells.longitudes[cluster], count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the ctrls in the region. Exact above zoom level {@link #MAX_ZOOM} -
+     * {@link #COUNT_PRECISION_LEVELS}, below that cells of 1/8 of a cluster cell on the border of the
+     * region are counted if their center is inside.
+     *
+     * @param zoom  the zoom level of the map
+     * @param south the southern bound
+     * @param west  the western bound
+     * @param north the northern bound
+     * @param east  the eastern bound, less than west if the region crosses the antimeridian
+     * @return the number of ctrls
+     */
+    public int count(float zoom, double south, double west, double north, double east) {
+        if (west > east) {
+            return count(zoom, south, west, north, 180d) + count(zoom, south, -180d, north, east);
+        }
+        int depth = Math.min(MAX_ZOOM, Math.max(0, (int) zoom) + COUNT_PRECISION_LEVELS);
+        double scale = 1 << (MAX_ZOOM + CELL_BITS);
+        double minX = mercatorX(west) * scale;
+        double maxX = mercatorX(east) * scale;
+        double minY = mercatorY(north) * scale;
+        double maxY = mercatorY(south) * scale;
+
+        int total = 0;
+        for (int x = 0; x < 1 << CELL_BITS; x++) {
+            for (int y = 0; y < 1 << CELL_BITS; y++) {
+                total += countCell(0, x, y, depth, minX, minY, maxX, maxY, south, west, north, east);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param minX the region in cells of {@link #MAX_ZOOM}
+     */
+    private int countCell(int level, int x, int y, int depth, double minX, double minY, double maxX, double maxY,
+                          double south, double west, double north, double east) {
+        int shift = MAX_ZOOM - level;
+        double left = (long) x << shift;
+        double right = (long) (x + 1) << shift;
+        double top = (long) y << shift;
+        double bottom = (long) (y + 1) << shift;
+        if (right <= minX || left >= maxX || bottom <= minY || top >= maxY) {
+            return 0;
+        }
+
+        Level cells = mLevels[level];
+        int cluster = Arrays.binarySearch(cells.cells, morton(x, y));
+        if (cluster < 0) {
+            return 0;
+        }
+        if (left >= minX && right <= maxX && top >= minY && bottom <= maxY) {
+            return cells.counts[cluster];
+        }
+
+        if (level == MAX_ZOOM) {
+            int count = 0;
+            int start = cells.starts[cluster];
+            for (int i = start; i < start + cells.counts[cluster]; i++) {
+                if (contains(mRows[i], south, west, north, east)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        if (level == depth) {
+            double centerX = (left + right) / 2d;
+            double centerY = (top + bottom) / 2d;
+            return centerX >= minX && centerX < maxX && centerY >= minY && centerY < maxY ? cells.counts[cluster] : 0;
+        }
+
+        int count = 0;
+        for (int child = 0; child < 4; child++) {
+            count += countCell(level + 1, 2 * x + (child >> 1), 2 * y + (child & 1), depth,
+                    minX, minY, maxX, maxY, south, west, north, east);
+        }
+        return count;
+    }
+
+    private boolean contains(int row, double south, double west, double north, double east) {
+        double latitude = mStore.getLatitude(row);
+        double longitude = mStore.getLongitude(row);
+        if (latitude < south || latitude > north) {
+            return false;
+        }
+        return west <= east
+                ? longitude >= west && longitude <= east
+                : longitude >= west || longitude <= east;
+    }
+
+    private static double mercatorX(double longitude) {
+        return (longitude + 180d) / 360d;
+    }
+
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5d - Math.log((1d + sin) / (1d - sin)) / (4d * Math.PI);
+    }
+
+    private static int clamp(int cell, int bits) {
+        return Math.max(0, Math.min(cell, (1 << bits) - 1));
+    }
+
+    /**
+     * Interleaves the bits of x and y (x on the odd bits).
+     */
+    private static long morton(int x, int y) {
+        return (spread(x) << 1) | spread(y);
+    }
+
+    private static long spread(int value) {
+        long v = value & 0xFFFFFFFFL;
+        v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+        v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+        v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | (v << 2)) & 0x3333333333333333L;
+        v = (v | (v << 1)) & 0x5555555555555555L;
+        return v;
+    }
+}
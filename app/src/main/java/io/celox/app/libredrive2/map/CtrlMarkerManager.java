@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.celox.app.libredrive2.map;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import io.celox.app.libredrive2.index.CtrlStore;
+
+/**
+ * Keeps the ctrl and cluster markers on the map, keyed by ctrl id or cluster key. Every update
+ * diffs the visible items against the markers on the map: markers of items which are still visible
+ * are kept as they are, only the ones which entered the view are added and only the ones which left
+ * it are removed.
+ * <p>
+ * An update is framed by {@link #beginUpdate()} and {@link #endUpdate()}, in between every visible
+ * item is put once. A kept marker isn't touched, so when the data behind the keys changes (a new
+ * cluster index) the markers have to be dropped with {@link #clear()} first.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlMarkerManager {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "CtrlMarkerManager";
+
+    /**
+     * Creates the marker of an item which entered the view.
+     */
+    public interface MarkerFactory {
+
+        @NonNull
+        MarkerOptions createCtrl(@NonNull CtrlStore store, int row);
+
+        @NonNull
+        MarkerOptions createCluster(double latitude, double longitude, int count);
+    }
+
+    private final GoogleMap mGoogleMap;
+    private final MarkerFactory mMarkerFactory;
+    private final int mMaxMarkers;
+
+    /* swapped on every update, so the diff doesn't allocate */
+    private LongSparseArray<Marker> mMarkers = new LongSparseArray<>();
+    private LongSparseArray<Marker> mNextMarkers = new LongSparseArray<>();
+    private int mAdded = 0;
+
+    /**
+     * Instantiates a new marker manager.
+     *
+     * @param googleMap     the map
+     * @param markerFactory creates the markers
+     * @param maxMarkers    the maximum number of markers
+     */
+    public CtrlMarkerManager(@NonNull GoogleMap googleMap, @NonNull MarkerFactory markerFactory, int maxMarkers) {
+        mGoogleMap = googleMap;
+        mMarkerFactory = markerFactory;
+        mMaxMarkers = maxMarkers;
+    }
+
+    /**
+     * Starts an update.
+     */
+    public void beginUpdate() {
+        mNextMarkers.clear();
+        mAdded = 0;
+    }
+
+    /**
+     * Puts a visible ctrl, keyed by its id.
+     *
+     * @param store the store
+     * @param row   the row in the store
+     */
+    public void putCtrl(@NonNull CtrlStore store, int row) {
+        long key = store.getId(row);
+        if (mNextMarkers.indexOfKey(key) >= 0) {
+            return;
+        }
+        Marker marker = take(key);
+        if (marker == null && mNextMarkers.size() < mMaxMarkers) {
+            marker = mGoogleMap.addMarker(mMarkerFactory.createCtrl(store, row));
+            mAdded++;
+        }
+        if (marker != null) {
+            mNextMarkers.put(key, marker);
+        }
+    }
+
+    /**
+     * Puts a visible cluster.
+     *
+     * @param key       the key of the cluster, distinct from all ctrl ids
+     * @param latitude  the latitude
+     * @param longitude the longitude
+     * @param count     the number of ctrls
+     */
+    public void putCluster(long key, double latitude, double longitude, int count) {
+        if (mNextMarkers.indexOfKey(key) >= 0) {
+            return;
+        }
+        Marker marker = take(key);
+        if (marker == null && mNextMarkers.size() < mMaxMarkers) {
+            marker = mGoogleMap.addMarker(mMarkerFactory.createCluster(latitude, longitude, count));
+            mAdded++;
+        }
+        if (marker != null) {
+            mNextMarkers.put(key, marker);
+        }
+    }
+
+    /**
+     * Takes the marker of an item which has been visible before out of the previous set.
+     */
+    @Nullable
+    private Marker take(long key) {
+        int index = mMarkers.indexOfKey(key);
+        if (index < 0) {
+            return null;
+        }
+        Marker marker = mMarkers.valueAt(index);
+        mMarkers.removeAt(index);
+        return marker;
+    }
+
+    /**
+     * Removes the markers of all items which haven't been put since {@link #beginUpdate()}.
+     */
+    public void endUpdate() {
+        // whatever is left has left the view
+        int removed = mMarkers.size();
+        for (int i = 0; i < removed; i++) {
+            mMarkers.valueAt(i).remove();
+        }
+        mMarkers.clear();
+
+        LongSparseArray<Marker> markers = mMarkers;
+        mMarkers = mNextMarkers;
+        mNextMarkers = markers;
+
+        Log.d(TAG, "endUpdate: +" + mAdded + " -" + removed + " = " + mMarkers.size());
+    }
+
+    /**
+     * Removes all markers.
+     */
+    public void clear() {
+        for (int i = 0; i < mMarkers.size(); i++) {
+            mMarkers.valueAt(i).remove();
+        }
+        mMarkers.clear();
+    }
+
+    /**
+     * Gets the number of markers on the map.
+     *
+     * @return the number of markers
+     */
+    public int size() {
+        return mMarkers.size();
+    }
+}
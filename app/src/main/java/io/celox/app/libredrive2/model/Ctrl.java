@@ -28,6 +28,7 @@ import com.google.android.gms.maps.model.LatLng;
  */
 public class Ctrl {
 
+    private int id;
     @NonNull
     private LatLng latLng;
     private int speed;
@@ -37,16 +38,36 @@ public class Ctrl {
     /**
      * Instantiates a new Ctrl.
      *
+     * @param id          the id
      * @param latLng      the lat lng
      * @param speed       the speed
      * @param description the description
      */
-    public Ctrl(@NonNull LatLng latLng, int speed, @NonNull String description) {
+    public Ctrl(int id, @NonNull LatLng latLng, int speed, @NonNull String description) {
+        this.id = id;
         this.latLng = latLng;
         this.speed = speed;
         this.description = description;
     }
 
+    /**
+     * Gets id.
+     *
+     * @return the id
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Sets id.
+     *
+     * @param id the id
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
     /**
      * Gets lat lng.
      *
@@ -106,7 +127,8 @@ public class Ctrl {
     @Override
     public String toString() {
         return "Ctrl{" +
-                "latLng=" + latLng +
+                "id=" + id +
+                ", latLng=" + latLng +
                 ", speed=" + speed +
                 ", description='" + description + '\'' +
                 '}';
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.celox.app.libredrive2.services;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Picks the interval and priority of the location updates from the speed and the distance to the
+ * next ctrl. The closer (in time) the next ctrl, the tighter the updates; far away from any ctrl,
+ * standing still or parked the updates back off.
+ * <p>
+ * Tightening happens on the next fix, loosening only after the looser tier has been proposed for
+ * {@link #LOOSEN_DELAY}, so a single outlier fix doesn't make the request flap. Fixes without a
+ * speed, which is common with the balanced priority of the sparse tiers, are timed with the last
+ * known speed, or keep the current tier if there is none.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class GpsScheduler {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "GpsScheduler";
+
+    public static final int TIER_APPROACH = 0;
+    public static final int TIER_CRUISE = 1;
+    public static final int TIER_SPARSE = 2;
+    public static final int TIER_STATIONARY = 3;
+    public static final int TIER_PARKED = 4;
+
+    private static final long[] INTERVALS = {800L, 3000L, 10000L, 15000L, 30000L};
+    private static final int[] PRIORITIES = {
+            LocationRequest.PRIORITY_HIGH_ACCURACY,
+            LocationRequest.PRIORITY_HIGH_ACCURACY,
+            LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+            LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY,
+            LocationRequest.PRIORITY_LOW_POWER};
+
+    private static final long FASTEST_INTERVAL_OFFSET = 10L;
+
+    /**
+     * Seconds until the warn distance is reached, below which the tighter tier is used.
+     */
+    private static final float APPROACH_SECONDS = 30f;
+    private static final float CRUISE_SECONDS = 90f;
+
+    private static final float STATIONARY_SPEED_MS = 1f;
+    private static final long STATIONARY_DELAY = 20 * 1000L;
+    private static final long PARKED_DELAY = 5 * 60 * 1000L;
+    private static final long LOOSEN_DELAY = 15 * 1000L;
+
+    private final int mWarnDistance;
+
+    private int mTier = TIER_APPROACH;
+    private int mProposedTier = TIER_APPROACH;
+    private long mProposedSince = 0L;
+    private long mStationarySince = -1L;
+    /* the speed of the last fix which had one, -1 for none */
+    private float mLastSpeed = -1f;
+
+    /**
+     * Instantiates a new scheduler, starting with the tightest tier.
+     *
+     * @param warnDistanceInMeters the distance at which ctrls are warned about
+     */
+    public GpsScheduler(int warnDistanceInMeters) {
+        mWarnDistance = warnDistanceInMeters;
+    }
+
+    /**
+     * Feeds a fix into the scheduler.
+     *
+     * @param timeInMillis     the time of the fix
+     * @param hasSpeed         whether the fix has a speed
+     * @param speedMs          the speed in m/s
+     * @param distanceInMeters the distance to the next ctrl, or the lookahead distance if there is none
+     * @return true if the tier changed and the location request has to be renewed
+     */
+    public boolean update(long timeInMillis, boolean hasSpeed, float speedMs, double distanceInMeters) {
+        int tier = proposeTier(timeInMillis, hasSpeed, speedMs, distanceInMeters);
+
+        if (tier != mProposedTier) {
+            mProposedTier = tier;
+            mProposedSince = timeInMillis;
+        }
+        if (tier < mTier || (tier > mTier && timeInMillis - mProposedSince >= LOOSEN_DELAY)) {
+            mTier = tier;
+            return true;
+        }
+        return false;
+    }
+
+    private int proposeTier(long timeInMillis, boolean hasSpeed, float speedMs, double distanceInMeters) {
+        if (hasSpeed && speedMs < STATIONARY_SPEED_MS) {
+            if (mStationarySince < 0L) {
+                mStationarySince = timeInMillis;
+            }
+            long stationary = timeInMillis - mStationarySince;
+            if (stationary >= PARKED_DELAY) {
+                return TIER_PARKED;
+            } else if (stationary >= STATIONARY_DELAY) {
+                return TIER_STATIONARY;
+            }
+            // a short stop says nothing about how soon we reach the next ctrl
+            return mTier;
+        } else {
+            mStationarySince = -1L;
+        }
+
+        if (hasSpeed) {
+            mLastSpeed = speedMs;
+        }
+        if (distanceInMeters <= mWarnDistance) {
+            return TIER_APPROACH;
+        }
+        if (mLastSpeed < 0f) {
+            return mTier;
+        }
+        float speed = Math.max(mLastSpeed, STATIONARY_SPEED_MS);
+        double seconds = (distanceInMeters - mWarnDistance) / speed;
+        if (seconds < APPROACH_SECONDS) {
+            return TIER_APPROACH;
+        } else if (seconds < CRUISE_SECONDS) {
+            return TIER_CRUISE;
+        }
+        return TIER_SPARSE;
+    }
+
+    /**
+     * Gets the current tier.
+     *
+     * @return the tier
+     */
+    public int getTier() {
+        return mTier;
+    }
+
+    /**
+     * Creates the location request of the current tier.
+     *
+     * @return the location request
+     */
+    public LocationRequest createLocationRequest() {
+        LocationRequest locationRequest = LocationRequest.create();
+        locationRequest.setPriority(PRIORITIES[mTier]);
+        locationRequest.setInterval(INTERVALS[mTier]);
+        locationRequest.setFastestInterval(INTERVALS[mTier] - FASTEST_INTERVAL_OFFSET);
+        return locationRequest;
+    }
+}
@@ -28,8 +28,11 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.NotificationCompat;
@@ -37,19 +40,23 @@ import android.util.Log;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationCallback;
-import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.pepperonas.andbasx.base.ToastUtils;
-import com.pepperonas.jbasx.math.GeographicUtils;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.celox.app.libredrive2.MainActivity;
 import io.celox.app.libredrive2.R;
-import io.celox.app.libredrive2.model.Ctrl;
+import io.celox.app.libredrive2.alert.AlertEngine;
+import io.celox.app.libredrive2.events.GpsEventBus;
+import io.celox.app.libredrive2.index.BinaryCtrlIndex;
+import io.celox.app.libredrive2.index.CtrlCursor;
+import io.celox.app.libredrive2.index.CtrlKdTree;
+import io.celox.app.libredrive2.index.CtrlRegionCache;
+import io.celox.app.libredrive2.index.CtrlStore;
 import io.celox.app.libredrive2.utils.Const;
 import io.celox.app.libredrive2.utils.DatabaseCtrls;
 
@@ -62,39 +69,63 @@ public class GpsService extends Service {
 
     private static final String TAG = "GpsService";
 
-    public static final long GPS_UPDATE_FREQUENCY = 800L;
-    private static final long GPS_OFFSET_TIME = 10L;
-
     private static final int START_FOREGROUND_ID = 1;
 
     private DatabaseCtrls mDatabaseCtrls;
+    private volatile BinaryCtrlIndex mBinaryCtrlIndex;
+    private CtrlRegionCache mCtrlRegionCache;
+    private final CtrlCursor mCtrlCursor = new CtrlCursor(8);
+    private final int[] mCandidateIds = new int[Const.CTRL_ALERT_CANDIDATES];
+    private final double[] mCandidateDistances = new double[Const.CTRL_ALERT_CANDIDATES];
+    private float mLastBearing = Float.NaN;
+    private AlertEngine mAlertEngine;
+    /* the ctrl the UI and the notification show, only touched on the worker thread */
+    private int mWarnedCtrlId = -1;
+    private WarningPredictor mWarningPredictor;
+    private final GpsScheduler mGpsScheduler = new GpsScheduler(Const.CTRL_WARN_DISTANCE_IN_METERS);
     private FusedLocationProviderClient mFusedLocationClient;
-    private NotificationCompat.Builder mNotificationBuilder;
-    private NotificationManager mNotificationManager;
+    private volatile NotificationUpdater mNotificationUpdater;
+
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
+    private final AtomicReference<Location> mPendingLocation = new AtomicReference<>();
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "onCreate: ");
 
-        mDatabaseCtrls = new DatabaseCtrls(this);
+        mWorkerThread = new HandlerThread(TAG + "Worker");
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        mAlertEngine = new AlertEngine(Const.CTRL_WARN_BANDS_IN_METERS, Const.CTRL_ALERT_COOLDOWN, mAlertListener);
+        mWarningPredictor = new WarningPredictor(mWorkerHandler, Const.CTRL_WARN_BANDS_IN_METERS, mBandListener);
+
+        mDatabaseCtrls = DatabaseCtrls.getInstance(this);
+        // the regions are loaded from the database until the index is open
+        mWorkerHandler.post(mOpenCtrlIndex);
+        mCtrlRegionCache = new CtrlRegionCache(new CtrlRegionCache.Loader() {
+            @NonNull
+            @Override
+            public CtrlStore load(double latitude, double longitude, int radiusInMeters) {
+                if (mBinaryCtrlIndex != null) {
+                    return mBinaryCtrlIndex.loadArea(latitude, longitude, radiusInMeters);
+                }
+                return mDatabaseCtrls.getCtrlStore(latitude, longitude, radiusInMeters, 0);
+            }
+        }, Const.CTRL_REGION_RADIUS_IN_METERS, Const.CTRL_REGION_PREFETCH_MARGIN_IN_METERS);
+        GpsEventBus.getInstance().register(mDatasetListener);
 
         mFusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
         if (ActivityCompat.checkSelfPermission(this, permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED
                 && ActivityCompat.checkSelfPermission(this, permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
             ToastUtils.toastLongFromBackground(R.string.permission_required_location);
-            Intent intentGps = new Intent(Const.FILTER_GPS_UPDATE);
-            intentGps.putExtra(Const.IE_GPS_STATE, "CONNECTION FAILED (missing permissions)");
-            sendBroadcast(intentGps);
+            GpsEventBus.getInstance().postGpsState("CONNECTION FAILED (missing permissions)");
             return;
         }
 
-        LocationRequest locationRequest = LocationRequest.create();
-        locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-        locationRequest.setInterval(GPS_UPDATE_FREQUENCY);
-        locationRequest.setFastestInterval(GPS_UPDATE_FREQUENCY - GPS_OFFSET_TIME);
-
-        mFusedLocationClient.requestLocationUpdates(locationRequest, mLocationCallback, Looper.myLooper());
+        mFusedLocationClient.requestLocationUpdates(mGpsScheduler.createLocationRequest(), mLocationCallback,
+                mWorkerThread.getLooper());
         mFusedLocationClient.getLastLocation().addOnSuccessListener(new OnSuccessListener<Location>() {
             @Override
             public void onSuccess(Location location) {
@@ -105,69 +136,222 @@ public class GpsService extends Service {
         });
     }
 
-    LocationCallback mLocationCallback = new LocationCallback() {
+    /**
+     * Opens the bundled index on the worker thread, reading the data set version and mapping the
+     * file would hold up the main thread. Runs before any fix or data set change on the worker.
+     */
+    private final Runnable mOpenCtrlIndex = new Runnable() {
         @Override
-        public void onLocationResult(LocationResult locationResult) {
-            for (Location location : locationResult.getLocations()) {
-                List<Ctrl> ctrls = new ArrayList<>();
-                if (mDatabaseCtrls != null) {
-                    ctrls = mDatabaseCtrls.getCtrlsInArea(location.getLatitude(), location.getLongitude(),
-                            Const.CTRL_WARN_DISTANCE_IN_METERS);
-                    Log.w(TAG, "onLocationChanged: ctrls=" + ctrls.size());
+        public void run() {
+            try {
+                mBinaryCtrlIndex = BinaryCtrlIndex.open(GpsService.this, mDatabaseCtrls.getDatasetVersion());
+            } catch (IOException e) {
+                Log.w(TAG, "openCtrlIndex: no ctrl index, using the database. " + e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * The bundled index no longer matches the database, the regions are reloaded from the database
+     * on the next fix. The ids may have changed with the data set, so the alert state is dropped.
+     */
+    private final GpsEventBus.DatasetListener mDatasetListener = new GpsEventBus.DatasetListener() {
+        @Override
+        public void onDatasetChanged(int datasetVersion) {
+            Log.i(TAG, "onDatasetChanged: " + datasetVersion);
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mBinaryCtrlIndex = null;
+                    mCtrlRegionCache.invalidate();
+                    mWarningPredictor.reset();
+                    mAlertEngine.clear();
+                    clearWarning();
                 }
+            });
+        }
+    };
+
+    /**
+     * Feeds the predicted band crossings between two fixes into the alert engine.
+     */
+    private final WarningPredictor.Listener mBandListener = new WarningPredictor.Listener() {
+        @Override
+        public void onBandCrossed(int ctrlId, int bandInMeters) {
+            Log.d(TAG, "onBandCrossed: " + ctrlId + " at " + bandInMeters + " m (predicted)");
+            mAlertEngine.predict(SystemClock.elapsedRealtime(), ctrlId, bandInMeters);
+        }
+    };
 
-                Intent gpsLocation = new Intent(Const.FILTER_LOCATION_BROADCAST);
-                gpsLocation.putExtra("lat", location.getLatitude());
-                gpsLocation.putExtra("lng", location.getLongitude());
-                gpsLocation.putExtra("speed_ms", location.getSpeed());
-                gpsLocation.putExtra("accuracy", location.getAccuracy());
-                sendBroadcast(gpsLocation);
-
-                if (ctrls.size() > 0) {
-                    Ctrl closestCtrl = null;
-                    int minDist = Integer.MAX_VALUE;
-                    for (Ctrl ctrl : ctrls) {
-                        int tmpDist = (int) GeographicUtils.distanceBetweenGeoPositionsInMeters(
-                                ctrl.getLatLng().latitude, ctrl.getLatLng().longitude,
-                                location.getLatitude(), location.getLongitude());
-                        Log.d(TAG, "onLocationChanged: tmpDist=" + tmpDist);
-                        if (tmpDist < minDist) {
-                            minDist = tmpDist;
-                            closestCtrl = ctrl;
-                            Log.i(TAG, "onLocationChanged: found new closest ctrl: " + closestCtrl.toString());
-                        }
-                    }
-
-                    if (closestCtrl != null) {
-                        Intent ctrlWarning = new Intent(Const.FILTER_WARNING_CTRL);
-                        ctrlWarning.putExtra("ctrl_speed", closestCtrl.getSpeed());
-                        ctrlWarning.putExtra("ctrl_description", closestCtrl.getDescription());
-                        ctrlWarning.putExtra("distance", minDist);
-                        sendBroadcast(ctrlWarning);
-
-                        String speedInfo;
-                        if (closestCtrl.getSpeed() != 0) {
-                            speedInfo = " (" + closestCtrl.getSpeed() + " " + getString(R.string.kmh) + ")";
-                        } else {
-                            speedInfo = "";
-                        }
-                        mNotificationBuilder.setContentTitle(getString(R.string.warning_in) + " " + minDist + " " + getString(R.string.meters));
-                        mNotificationBuilder.setContentText(closestCtrl.getDescription() + speedInfo);
-                        mNotificationManager.notify(START_FOREGROUND_ID, mNotificationBuilder.build());
-                    } else {
-                        Log.w(TAG, "onLocationChanged: closestCtrl is null, this should not happen..");
-                    }
+    /**
+     * Called on the worker thread while {@link #mCtrlCursor} still holds the candidates the
+     * transition stems from.
+     */
+    private final AlertEngine.Listener mAlertListener = new AlertEngine.Listener() {
+        @Override
+        public void onAlert(int ctrlId, int band, int distance) {
+            Log.i(TAG, "onAlert: " + ctrlId + " band=" + band + " distance=" + distance);
+            for (boolean hasRow = mCtrlCursor.moveToFirst(); hasRow; hasRow = mCtrlCursor.moveToNext()) {
+                if (mCtrlCursor.getId() == ctrlId) {
+                    warn(ctrlId, mCtrlCursor.getSpeed(), mCtrlCursor.getType(), mCtrlCursor.getDescription(), band,
+                            distance);
+                    return;
                 }
             }
         }
+
+        @Override
+        public void onPassed(int ctrlId) {
+            Log.i(TAG, "onPassed: " + ctrlId);
+            if (ctrlId == mWarnedCtrlId || !mAlertEngine.isAlerting()) {
+                clearWarning();
+            }
+        }
     };
 
+    /**
+     * Delivered on the worker thread. Only the latest fix is kept: if a fix arrives while the
+     * previous one is still waiting to be processed, the stale one is dropped.
+     */
+    LocationCallback mLocationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            Location location = locationResult.getLastLocation();
+            if (location == null) {
+                return;
+            }
+            if (mPendingLocation.getAndSet(location) == null) {
+                mWorkerHandler.post(mProcessLocation);
+            } else {
+                Log.d(TAG, "onLocationResult: dropped stale fix.");
+            }
+        }
+    };
+
+    private final Runnable mProcessLocation = new Runnable() {
+        @Override
+        public void run() {
+            Location location = mPendingLocation.getAndSet(null);
+            if (location != null) {
+                processLocation(location);
+            }
+        }
+    };
+
+    private void processLocation(Location location) {
+        GpsEventBus.getInstance().postLocation(location);
+
+        double distance = warnClosestCtrl(location);
+
+        if (mGpsScheduler.update(SystemClock.elapsedRealtime(), location.hasSpeed(), location.getSpeed(), distance)) {
+            Log.i(TAG, "processLocation: tier=" + mGpsScheduler.getTier());
+            try {
+                mFusedLocationClient.requestLocationUpdates(mGpsScheduler.createLocationRequest(), mLocationCallback,
+                        mWorkerThread.getLooper());
+            } catch (SecurityException e) {
+                Log.e(TAG, "processLocation: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Feeds the closest ctrls ahead into the {@link AlertEngine}, which warns when one of them
+     * reaches the next band and clears the warning once they have been passed. The bearing is only
+     * trusted above {@link Const#CTRL_AHEAD_MIN_SPEED_MS}, below that (e.g. waiting at a traffic
+     * light) the last trusted bearing is kept. Without any bearing yet the geometrically closest
+     * ctrls are used. Between the fixes the {@link WarningPredictor} reports when the closest ctrl
+     * ahead reaches the next band.
+     *
+     * @return the distance to the closest ctrl ahead, at most {@link Const#CTRL_LOOKAHEAD_IN_METERS}
+     */
+    private double warnClosestCtrl(Location location) {
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+        CtrlKdTree ctrlKdTree = mCtrlRegionCache.get(latitude, longitude, Const.CTRL_LOOKAHEAD_IN_METERS);
+        if (ctrlKdTree == null) {
+            return 0d;
+        }
+
+        if (location.hasBearing() && location.getSpeed() >= Const.CTRL_AHEAD_MIN_SPEED_MS) {
+            mLastBearing = location.getBearing();
+        }
+        int count;
+        if (Float.isNaN(mLastBearing)) {
+            count = ctrlKdTree.nearest(latitude, longitude, Const.CTRL_ALERT_CANDIDATES, mCtrlCursor);
+        } else {
+            count = ctrlKdTree.ahead(latitude, longitude, mLastBearing, Const.CTRL_AHEAD_HALF_ANGLE,
+                    Const.CTRL_LOOKAHEAD_IN_METERS, Const.CTRL_ALERT_CANDIDATES, mCtrlCursor);
+        }
+        for (int i = 0; i < count && mCtrlCursor.moveToPosition(i); i++) {
+            mCandidateIds[i] = mCtrlCursor.getId();
+            mCandidateDistances[i] = mCtrlCursor.getDistance();
+        }
+        long now = location.getElapsedRealtimeNanos() / 1000000L;
+        mAlertEngine.update(now, mCandidateIds, mCandidateDistances, count);
+        updateWarnedDistance(count);
+
+        double distance = count > 0 ? Math.min(mCandidateDistances[0], Const.CTRL_LOOKAHEAD_IN_METERS)
+                : Const.CTRL_LOOKAHEAD_IN_METERS;
+
+        // the along-track distance shrinks with the speed, the distance to the closest one doesn't
+        if (count > 0 && !Float.isNaN(mLastBearing) && location.hasSpeed()
+                && location.getSpeed() >= Const.CTRL_AHEAD_MIN_SPEED_MS) {
+            mWarningPredictor.update(now, mCandidateIds[0], distance, location.getSpeed());
+        } else {
+            mWarningPredictor.reset();
+        }
+        return distance;
+    }
+
+    /**
+     * Keeps the distance in the UI and the notification current between the transitions, the
+     * {@link NotificationUpdater} drops the updates which wouldn't change what is shown.
+     */
+    private void updateWarnedDistance(int count) {
+        if (mWarnedCtrlId < 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (mCandidateIds[i] == mWarnedCtrlId && mCtrlCursor.moveToPosition(i)) {
+                int distance = (int) mCandidateDistances[i];
+                GpsEventBus.getInstance().postWarningDistance(mWarnedCtrlId, distance);
+                NotificationUpdater notificationUpdater = mNotificationUpdater;
+                if (notificationUpdater != null) {
+                    notificationUpdater.showWarning(mWarnedCtrlId, mCtrlCursor.getSpeed(),
+                            mCtrlCursor.getDescription(), distance);
+                }
+                return;
+            }
+        }
+    }
+
+    private void warn(int ctrlId, int ctrlSpeed, int ctrlType, String ctrlDescription, int band, int distance) {
+        GpsEventBus.getInstance().postWarning(ctrlId, ctrlSpeed, ctrlType, ctrlDescription, band, distance);
+
+        mWarnedCtrlId = ctrlId;
+        NotificationUpdater notificationUpdater = mNotificationUpdater;
+        if (notificationUpdater != null) {
+            notificationUpdater.showWarning(ctrlId, ctrlSpeed, ctrlDescription, distance);
+        }
+    }
+
+    private void clearWarning() {
+        GpsEventBus.getInstance().postWarningCleared();
+
+        mWarnedCtrlId = -1;
+        NotificationUpdater notificationUpdater = mNotificationUpdater;
+        if (notificationUpdater != null) {
+            notificationUpdater.showIdle();
+        }
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand");
 
         String channelId = "io.celox.libredrive2";
         String channelName = "GPS channel";
+        NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         NotificationChannel notificationChannel;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
             notificationChannel = new NotificationChannel(channelId, channelName, NotificationManager.IMPORTANCE_NONE);
@@ -175,34 +359,42 @@ public class GpsService extends Service {
             notificationChannel.setLightColor(Color.RED);
             notificationChannel.setShowBadge(true);
             notificationChannel.setLockscreenVisibility(Notification.BADGE_ICON_NONE);
-            mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-            if (mNotificationManager != null) {
-                mNotificationManager.createNotificationChannel(notificationChannel);
+            if (notificationManager != null) {
+                notificationManager.createNotificationChannel(notificationChannel);
             }
         }
 
+        Intent notificationIntent = new Intent(getApplicationContext(), MainActivity.class);
+        notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(getApplicationContext(), 0, notificationIntent, 0);
+
         Bitmap icon = BitmapFactory.decodeResource(getResources(), R.mipmap.ic_launcher);
+        NotificationCompat.Builder notificationBuilder;
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
-            mNotificationBuilder = new NotificationCompat.Builder(getApplicationContext(), channelId)
+            notificationBuilder = new NotificationCompat.Builder(getApplicationContext(), channelId)
                     .setContentTitle(getString(R.string.gps_service_notification_title))
                     .setChannelId(channelId)
                     .setContentText(getString(R.string.service_notification_content))
                     .setSmallIcon(R.mipmap.ic_launcher)
-                    .setLargeIcon(icon);
+                    .setLargeIcon(icon)
+                    .setContentIntent(contentIntent)
+                    .setOnlyAlertOnce(true);
         } else {
-            mNotificationBuilder = new NotificationCompat.Builder(getApplicationContext())
+            notificationBuilder = new NotificationCompat.Builder(getApplicationContext())
                     .setContentTitle(getString(R.string.gps_service_notification_title))
                     .setContentText(getString(R.string.service_notification_content))
                     .setSmallIcon(R.mipmap.ic_launcher)
-                    .setLargeIcon(icon);
+                    .setLargeIcon(icon)
+                    .setContentIntent(contentIntent)
+                    .setOnlyAlertOnce(true);
         }
 
-        Intent notificationIntent = new Intent(getApplicationContext(), MainActivity.class);
-        notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        Notification notification = mNotificationBuilder.build();
-        notification.contentIntent = PendingIntent.getActivity(getApplicationContext(), 0, notificationIntent, 0);
+        startForeground(START_FOREGROUND_ID, notificationBuilder.build());
 
-        startForeground(START_FOREGROUND_ID, notification);
+        if (notificationManager != null) {
+            mNotificationUpdater = new NotificationUpdater(getApplicationContext(), notificationManager,
+                    notificationBuilder, START_FOREGROUND_ID, mWorkerHandler);
+        }
 
         return Service.START_STICKY;
     }
@@ -211,7 +403,11 @@ public class GpsService extends Service {
     public void onDestroy() {
         Log.d(TAG, "onDestroy: ");
 
+        GpsEventBus.getInstance().unregister(mDatasetListener);
         mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+        mWorkerHandler.removeCallbacksAndMessages(null);
+        mWorkerThread.quit();
+        mCtrlRegionCache.close();
 
         super.onDestroy();
     }
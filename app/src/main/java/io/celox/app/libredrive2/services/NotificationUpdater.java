@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.services;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+
+import io.celox.app.libredrive2.R;
+
+/**
+ * Keeps the foreground notification of the {@link GpsService} up to date without flooding the
+ * system with updates. The distance is shown in {@link #DISTANCE_BUCKET_IN_METERS} steps, content
+ * which is already shown isn't sent again and there is at most one update per
+ * {@link #MIN_INTERVAL}: changes within the interval are coalesced into one update at its end,
+ * which shows the latest content.
+ * <p>
+ * Must be used on the thread of the handler.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class NotificationUpdater {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "NotificationUpdater";
+
+    private static final long MIN_INTERVAL = 1000L;
+    private static final int DISTANCE_BUCKET_IN_METERS = 25;
+
+    private static final int NO_CTRL = -1;
+
+    private final Context mContext;
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mNotificationBuilder;
+    private final int mNotificationId;
+    private final Handler mHandler;
+
+    /* the content to show, no ctrl is the idle content */
+    private int mCtrlId = NO_CTRL;
+    private int mCtrlSpeed;
+    private String mCtrlDescription = "";
+    private int mDistance;
+
+    /* the content shown, the builder starts with the idle content */
+    private int mShownCtrlId = NO_CTRL;
+    private int mShownCtrlSpeed;
+    private String mShownCtrlDescription = "";
+    private int mShownDistance;
+
+    private long mLastUpdate = -MIN_INTERVAL;
+    private boolean mUpdateScheduled = false;
+
+    /**
+     * Instantiates a new updater.
+     *
+     * @param context             the context
+     * @param notificationManager the notification manager
+     * @param notificationBuilder the builder of the notification, showing the idle content
+     * @param notificationId      the id of the notification
+     * @param handler             runs the delayed updates
+     */
+    public NotificationUpdater(@NonNull Context context, @NonNull NotificationManager notificationManager,
+                               @NonNull NotificationCompat.Builder notificationBuilder, int notificationId,
+                               @NonNull Handler handler) {
+        mContext = context;
+        mNotificationManager = notificationManager;
+        mNotificationBuilder = notificationBuilder;
+        mNotificationId = notificationId;
+        mHandler = handler;
+    }
+
+    /**
+     * Shows a warning about a ctrl.
+     *
+     * @param ctrlId          the id of the ctrl
+     * @param ctrlSpeed       the speed limit
+     * @param ctrlDescription the description
+     * @param distance        the distance in meters
+     */
+    public void showWarning(int ctrlId, int ctrlSpeed, @NonNull String ctrlDescription, int distance) {
+        mCtrlId = ctrlId;
+        mCtrlSpeed = ctrlSpeed;
+        mCtrlDescription = ctrlDescription;
+        // rounded up, the notification never claims the ctrl is closer than it is
+        mDistance = (distance + DISTANCE_BUCKET_IN_METERS - 1) / DISTANCE_BUCKET_IN_METERS * DISTANCE_BUCKET_IN_METERS;
+        update();
+    }
+
+    /**
+     * Shows the idle content.
+     */
+    public void showIdle() {
+        mCtrlId = NO_CTRL;
+        update();
+    }
+
+    private boolean isShown() {
+        if (mCtrlId == NO_CTRL) {
+            return mShownCtrlId == NO_CTRL;
+        }
+        return mCtrlId == mShownCtrlId && mCtrlSpeed == mShownCtrlSpeed && mDistance == mShownDistance
+                && mCtrlDescription.equals(mShownCtrlDescription);
+    }
+
+    private void update() {
+        if (mUpdateScheduled || isShown()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long due = mLastUpdate + MIN_INTERVAL;
+        if (now >= due) {
+            publish(now);
+        } else {
+            mUpdateScheduled = true;
+            mHandler.postDelayed(mDelayedUpdate, due - now);
+        }
+    }
+
+    private final Runnable mDelayedUpdate = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateScheduled = false;
+            if (!isShown()) {
+                publish(SystemClock.elapsedRealtime());
+            }
+        }
+    };
+
+    private void publish(long now) {
+        if (mCtrlId == NO_CTRL) {
+            mNotificationBuilder.setContentTitle(mContext.getString(R.string.gps_service_notification_title));
+            mNotificationBuilder.setContentText(mContext.getString(R.string.service_notification_content));
+        } else {
+            String speedInfo;
+            if (mCtrlSpeed != 0) {
+                speedInfo = " (" + mCtrlSpeed + " " + mContext.getString(R.string.kmh) + ")";
+            } else {
+                speedInfo = "";
+            }
+            mNotificationBuilder.setContentTitle(mContext.getString(R.string.warning_in) + " " + mDistance + " "
+                    + mContext.getString(R.string.meters));
+            mNotificationBuilder.setContentText(mCtrlDescription + speedInfo);
+        }
+        mNotificationManager.notify(mNotificationId, mNotificationBuilder.build());
+
+        mShownCtrlId = mCtrlId;
+        mShownCtrlSpeed = mCtrlSpeed;
+        mShownCtrlDescription = mCtrlDescription;
+        mShownDistance = mDistance;
+        mLastUpdate = now;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.services;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+/**
+ * Dead reckoning between two fixes: extrapolates the distance to the warned ctrl from the speed
+ * of the last fix and reports when it crosses one of the warning bands, at the predicted time
+ * instead of with the next fix. At 30 m/s a band would otherwise be reported up to one fix
+ * interval (25 m) late.
+ * <p>
+ * Every band is reported at most once per ctrl, no matter whether the prediction or a fix got
+ * there first. The prediction never runs further than {@link #HORIZON} past the last fix, so it
+ * doesn't warn on stale data after the fixes stopped. Must be used on the thread of the handler.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class WarningPredictor {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "WarningPredictor";
+
+    /**
+     * How long after the last fix the distance is extrapolated.
+     */
+    private static final long HORIZON = 2500L;
+
+    /**
+     * Called on the thread of the handler.
+     */
+    public interface Listener {
+
+        /**
+         * The predicted distance to the ctrl reached one of the warning bands.
+         *
+         * @param ctrlId       the id of the ctrl ahead
+         * @param bandInMeters the band which has been crossed, the distance to the ctrl in meters
+         *                     as passed to the constructor, not the index of the band
+         */
+        void onBandCrossed(int ctrlId, int bandInMeters);
+    }
+
+    private final Handler mHandler;
+    private final int[] mBands;
+    private final Listener mListener;
+
+    private int mCtrlId = -1;
+    private int mNextBand = 0;
+    private double mDistance;
+    private float mSpeed;
+    private long mFixTime;
+
+    /**
+     * Instantiates a new predictor.
+     *
+     * @param handler  runs the timer
+     * @param bands    the warning bands in meters, descending
+     * @param listener the listener
+     */
+    public WarningPredictor(@NonNull Handler handler, @NonNull int[] bands, @NonNull Listener listener) {
+        mHandler = handler;
+        mBands = bands.clone();
+        mListener = listener;
+    }
+
+    /**
+     * Feeds a fix with the ctrl ahead.
+     *
+     * @param now      the {@link SystemClock#elapsedRealtime()} of the fix
+     * @param ctrlId   the id of the ctrl ahead
+     * @param distance the along-track distance to the ctrl in meters
+     * @param speed    the speed in m/s
+     */
+    public void update(long now, int ctrlId, double distance, float speed) {
+        if (ctrlId != mCtrlId) {
+            mCtrlId = ctrlId;
+            mNextBand = 0;
+        }
+        // bands the fix itself is in or past are reported by the fix
+        while (mNextBand < mBands.length && mBands[mNextBand] >= distance) {
+            mNextBand++;
+        }
+        mDistance = distance;
+        mSpeed = speed;
+        mFixTime = now;
+        schedule(now);
+    }
+
+    /**
+     * Stops predicting, e.g. when the ctrl has been passed or the bearing is unknown.
+     */
+    public void reset() {
+        mHandler.removeCallbacks(mCrossing);
+        mCtrlId = -1;
+        mNextBand = 0;
+    }
+
+    private void schedule(long now) {
+        mHandler.removeCallbacks(mCrossing);
+        if (mNextBand >= mBands.length || mSpeed <= 0f) {
+            return;
+        }
+        long crossing = mFixTime + (long) ((mDistance - mBands[mNextBand]) / mSpeed * 1000d);
+        if (crossing - mFixTime <= HORIZON) {
+            mHandler.postDelayed(mCrossing, Math.max(0L, crossing - now));
+        }
+    }
+
+    private final Runnable mCrossing = new Runnable() {
+        @Override
+        public void run() {
+            if (mCtrlId < 0 || mNextBand >= mBands.length) {
+                return;
+            }
+            int bandInMeters = mBands[mNextBand++];
+            mListener.onBandCrossed(mCtrlId, bandInMeters);
+            schedule(SystemClock.elapsedRealtime());
+        }
+    };
+}
@@ -24,22 +24,28 @@ package io.celox.app.libredrive2.utils;
 public class Const {
 
     public static final String DB_NAME = "ctrls.db";
-
-    public static final String FILTER_GPS_UPDATE = "filter_gps_update";
-
-    public static final String FILTER_LOCATION_BROADCAST = "filter_location_broadcast";
-    public static final String IE_GPS_STATE = "ie_gps_state";
-
-    public static final String FILTER_WARNING_CTRL = "filter_warning_ctrl";
+    public static final String CTRL_INDEX_ASSET = "ctrls.idx";
+    public static final String CTRL_PACK_ASSET = "ctrls.pack";
+    public static final int CTRL_DATASET_VERSION_BUNDLED = 1;
+    /**
+     * The data set version after a feed import, the rows no longer match any released version, so
+     * neither the bundled index nor a delta applies.
+     */
+    public static final int CTRL_DATASET_VERSION_IMPORTED = 0;
 
     public static final int CTRL_WARN_DISTANCE_IN_METERS = 500;
+    public static final int[] CTRL_WARN_BANDS_IN_METERS = {500, 200, 70};
+    public static final int CTRL_ALERT_CANDIDATES = 4;
+    public static final long CTRL_ALERT_COOLDOWN = 2 * 60 * 1000;
+    public static final float CTRL_AHEAD_HALF_ANGLE = 30f;
+    public static final float CTRL_AHEAD_MIN_SPEED_MS = 2.5f;
+    public static final int CTRL_LOOKAHEAD_IN_METERS = 4000;
+    public static final int CTRL_REGION_RADIUS_IN_METERS = 12000;
+    public static final int CTRL_REGION_PREFETCH_MARGIN_IN_METERS = 3000;
     public static final long DELAY_ON_BACK_PRESSED = 2000;
 
     public static final float MAP_CTRLS_CIRCLE_LINE_WIDTH = 5f;
     public static final int MAX_CTRLS_IN_MAP = 500;
     public static final double MAP_MARKER_RADIUS = 30d;
     public static final int NAV_DRAWER_ICON_SIZE = 24;
-    public static final long INTERVAL_MAIN_DRIVER = 1000;
-    public static final long DELAY_RESET_WARNING = 60 * 1000;
-    public static final int COUNTER_MOVE_FURTHER_AWAY = 3;
 }
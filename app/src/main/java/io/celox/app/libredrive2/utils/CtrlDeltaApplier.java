@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.utils;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.celox.app.libredrive2.events.GpsEventBus;
+
+/**
+ * Patches the ctrls database in place with a delta between two versions of the data set.
+ * <p>
+ * A delta is a big-endian binary stream:
+ * <pre>
+ * int    magic 'LDDL'
+ * int    format version
+ * int    base data set version
+ * int    target data set version
+ * int    number of operations
+ * ops    byte op, int id, followed by
+ *          UPSERT: int la * 1e6, int lo * 1e6, int ve, short sp, byte ty, int co, int ne, utf st
+ *          DELETE: -
+ *          MOVE:   int la * 1e6, int lo * 1e6
+ * </pre>
+ * The whole delta is applied in one transaction together with the new data set version, so the
+ * database is either at the base or at the target version. SQLite keeps the area index in sync
+ * row by row, the in-memory indexes are rebuilt by the listeners of
+ * {@link GpsEventBus#postDatasetChanged(int)}. Deltas are downloaded by
+ * {@link CtrlImporter#downloadDelta}.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlDeltaApplier {
+
+    private static final String TAG = "CtrlDeltaApplier";
+
+    private static final int MAGIC = 0x4C44444C;
+    private static final int FORMAT_VERSION = 1;
+    private static final double FIXED_POINT_SCALE = 1e6;
+
+    private static final int OP_UPSERT = 1;
+    private static final int OP_DELETE = 2;
+    private static final int OP_MOVE = 3;
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+
+        void onApplied(int datasetVersion, long durationInMillis);
+
+        void onError(@NonNull Throwable throwable);
+    }
+
+    private final DatabaseCtrls mDatabaseCtrls;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Instantiates a new applier.
+     *
+     * @param databaseCtrls the database
+     */
+    public CtrlDeltaApplier(@NonNull DatabaseCtrls databaseCtrls) {
+        mDatabaseCtrls = databaseCtrls;
+    }
+
+    /**
+     * Applies a delta file in the background.
+     *
+     * @param file     the delta
+     * @param listener the listener
+     */
+    public void applyAsync(@NonNull final File file, @NonNull final Listener listener) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    final int datasetVersion = apply(in);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onApplied(datasetVersion, SystemClock.elapsedRealtime() - start);
+                        }
+                    });
+                } catch (final Exception e) {
+                    Log.e(TAG, "applyAsync: ", e);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onError(e);
+                        }
+                    });
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            Log.w(TAG, "applyAsync: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Applies a delta on the calling thread. A delta which is already contained in the database is
+     * skipped.
+     *
+     * @param in the delta, not closed
+     * @return the data set version of the database afterwards
+     * @throws IOException if the delta is invalid or doesn't start at the version of the database
+     */
+    public int apply(@NonNull InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, 16 * 1024));
+        if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+            throw new IOException("Invalid ctrl delta.");
+        }
+        int baseVersion = data.readInt();
+        int targetVersion = data.readInt();
+        int count = data.readInt();
+
+        int localVersion = mDatabaseCtrls.getDatasetVersion();
+        if (targetVersion <= localVersion) {
+            Log.i(TAG, "apply: delta " + baseVersion + " -> " + targetVersion + " already applied.");
+            return localVersion;
+        }
+        if (baseVersion != localVersion) {
+            throw new IOException("Ctrl delta " + baseVersion + " -> " + targetVersion
+                    + " doesn't apply to version " + localVersion + ".");
+        }
+
+        SQLiteDatabase db = mDatabaseCtrls.getWritableDatabase();
+        SQLiteStatement upsert = db.compileStatement("INSERT OR REPLACE INTO " + DatabaseCtrls.TABLE_CTRLS
+                + " (id, la, lo, ve, sp, ty, co, ne, st) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + DatabaseCtrls.TABLE_CTRLS + " WHERE id = ?");
+        SQLiteStatement move = db.compileStatement("UPDATE " + DatabaseCtrls.TABLE_CTRLS + " SET la = ?, lo = ? WHERE id = ?");
+        int upserts = 0, deletes = 0, moves = 0, missed = 0;
+
+        db.beginTransactionNonExclusive();
+        try {
+            for (int i = 0; i < count; i++) {
+                int op = data.readUnsignedByte();
+                int id = data.readInt();
+                switch (op) {
+                    case OP_UPSERT:
+                        upsert.bindLong(1, id);
+                        upsert.bindDouble(2, data.readInt() / FIXED_POINT_SCALE);
+                        upsert.bindDouble(3, data.readInt() / FIXED_POINT_SCALE);
+                        upsert.bindLong(4, data.readInt());
+                        upsert.bindLong(5, data.readUnsignedShort());
+                        upsert.bindLong(6, data.readUnsignedByte());
+                        upsert.bindLong(7, data.readInt());
+                        upsert.bindLong(8, data.readInt());
+                        upsert.bindString(9, data.readUTF());
+                        upsert.executeInsert();
+                        upserts++;
+                        break;
+                    case OP_DELETE:
+                        delete.bindLong(1, id);
+                        if (delete.executeUpdateDelete() == 0) {
+                            missed++;
+                        }
+                        deletes++;
+                        break;
+                    case OP_MOVE:
+                        move.bindDouble(1, data.readInt() / FIXED_POINT_SCALE);
+                        move.bindDouble(2, data.readInt() / FIXED_POINT_SCALE);
+                        move.bindLong(3, id);
+                        if (move.executeUpdateDelete() == 0) {
+                            missed++;
+                        }
+                        moves++;
+                        break;
+                    default:
+                        throw new IOException("Invalid ctrl delta op " + op + " at " + i + ".");
+                }
+            }
+            DatabaseCtrls.setDatasetVersion(db, targetVersion);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            upsert.close();
+            delete.close();
+            move.close();
+        }
+
+        Log.i(TAG, "apply: " + baseVersion + " -> " + targetVersion + ", " + upserts + " upserts, " + deletes
+                + " deletes, " + moves + " moves (" + missed + " missed) in " + (SystemClock.elapsedRealtime() - start) + " ms.");
+        GpsEventBus.getInstance().postDatasetChanged(targetVersion);
+        return targetVersion;
+    }
+}
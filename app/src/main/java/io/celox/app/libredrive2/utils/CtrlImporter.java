@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.utils;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.loopj.android.http.AsyncHttpClient;
+import com.loopj.android.http.FileAsyncHttpResponseHandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.BitSet;
+
+import cz.msebera.android.httpclient.Header;
+import io.celox.app.libredrive2.events.GpsEventBus;
+
+/**
+ * Streams a ctrl feed into the database.
+ * <p>
+ * The feed has one ctrl per line, the columns of the ctrls table separated by semicolons:
+ * <pre>id;la;lo;ve;sp;ty;co;ne;st</pre>
+ * Empty lines, lines starting with '#' and a header line are skipped. Rows are bound into one
+ * compiled statement and committed in chunks of {@link #CHUNK_SIZE}, so readers are only held up
+ * for a chunk at a time. The database stays open. The first chunk also sets the data set version
+ * to {@link Const#CTRL_DATASET_VERSION_IMPORTED}, the bundled index isn't used anymore. Once a
+ * chunk has been committed the data set change is posted, even if a later line is malformed and
+ * the import stops halfway.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlImporter {
+
+    private static final String TAG = "CtrlImporter";
+
+    private static final int CHUNK_SIZE = 2000;
+    private static final int COLUMNS = 9;
+
+    /**
+     * Called on the main thread.
+     */
+    public interface Listener {
+
+        void onProgress(int rows, int rowsPerSecond);
+
+        void onDone(int rows, int removed, long durationInMillis);
+
+        void onError(@NonNull Throwable throwable);
+    }
+
+    private final DatabaseCtrls mDatabaseCtrls;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Instantiates a new importer.
+     *
+     * @param databaseCtrls the database
+     */
+    public CtrlImporter(@NonNull DatabaseCtrls databaseCtrls) {
+        mDatabaseCtrls = databaseCtrls;
+    }
+
+    /**
+     * Downloads a feed into the cache dir and imports it in the background.
+     *
+     * @param url         the url of the feed
+     * @param cacheDir    where the feed is stored
+     * @param fullRefresh remove all ctrls which aren't in the feed
+     * @param listener    the listener
+     */
+    public void download(@NonNull String url, @NonNull File cacheDir, final boolean fullRefresh,
+                         @NonNull final Listener listener) {
+        Log.i(TAG, "download: " + url);
+        new AsyncHttpClient().get(url, new FileAsyncHttpResponseHandler(new File(cacheDir, "ctrls_feed.csv")) {
+            @Override
+            public void onSuccess(int statusCode, Header[] headers, File file) {
+                importAsync(file, fullRefresh, listener);
+            }
+
+            @Override
+            public void onFailure(int statusCode, Header[] headers, Throwable throwable, File file) {
+                Log.e(TAG, "download: " + statusCode, throwable);
+                listener.onError(throwable);
+            }
+        });
+    }
+
+    /**
+     * Downloads a delta into the cache dir and applies it in the background, see
+     * {@link CtrlDeltaApplier}.
+     *
+     * @param url      the url of the delta
+     * @param cacheDir where the delta is stored
+     * @param listener the listener
+     */
+    public void downloadDelta(@NonNull String url, @NonNull File cacheDir,
+                              @NonNull final CtrlDeltaApplier.Listener listener) {
+        Log.i(TAG, "downloadDelta: " + url);
+        new AsyncHttpClient().get(url, new FileAsyncHttpResponseHandler(new File(cacheDir, "ctrls.delta")) {
+            @Override
+            public void onSuccess(int statusCode, Header[] headers, File file) {
+                new CtrlDeltaApplier(mDatabaseCtrls).applyAsync(file, listener);
+            }
+
+            @Override
+            public void onFailure(int statusCode, Header[] headers, Throwable throwable, File file) {
+                Log.e(TAG, "downloadDelta: " + statusCode, throwable);
+                listener.onError(throwable);
+            }
+        });
+    }
+
+    /**
+     * Imports a feed file in the background.
+     *
+     * @param file        the feed
+     * @param fullRefresh remove all ctrls which aren't in the feed
+     * @param listener    the listener
+     */
+    public void importAsync(@NonNull final File file, final boolean fullRefresh, @NonNull final Listener listener) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    importFeed(in, fullRefresh, listener);
+                } catch (final Exception e) {
+                    Log.e(TAG, "importAsync: ", e);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onError(e);
+                        }
+                    });
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            Log.w(TAG, "importAsync: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Imports a feed on the calling thread.
+     *
+     * @param in          the feed, not closed
+     * @param fullRefresh remove all ctrls which aren't in the feed
+     * @param listener    the listener
+     * @return the number of imported rows
+     * @throws IOException if the feed can't be read or a line is malformed
+     */
+    public int importFeed(@NonNull InputStream in, boolean fullRefresh, @NonNull final Listener listener) throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), 64 * 1024);
+        SQLiteDatabase db = mDatabaseCtrls.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + DatabaseCtrls.TABLE_CTRLS
+                + " (id, la, lo, ve, sp, ty, co, ne, st) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        BitSet ids = new BitSet();
+        String[] fields = new String[COLUMNS];
+        int rows = 0;
+        int removed = 0;
+        int lineNumber = 0;
+        boolean changed = false;
+
+        try {
+            String line = reader.readLine();
+            while (line != null) {
+                db.beginTransactionNonExclusive();
+                try {
+                    if (!changed) {
+                        DatabaseCtrls.setDatasetVersion(db, Const.CTRL_DATASET_VERSION_IMPORTED);
+                    }
+                    int chunk = 0;
+                    while (line != null && chunk < CHUNK_SIZE) {
+                        lineNumber++;
+                        if (!line.isEmpty() && line.charAt(0) != '#' && !line.startsWith("id;")) {
+                            if (split(line, fields) != COLUMNS) {
+                                throw new IOException("malformed line " + lineNumber + ": " + line);
+                            }
+                            bind(insert, fields, ids);
+                            insert.executeInsert();
+                            chunk++;
+                        }
+                        line = reader.readLine();
+                    }
+                    db.setTransactionSuccessful();
+                    rows += chunk;
+                } catch (NumberFormatException e) {
+                    throw new IOException("malformed line " + lineNumber + ": " + e.getMessage());
+                } finally {
+                    db.endTransaction();
+                }
+                changed = true;
+
+                final int progress = rows;
+                final int rowsPerSecond = (int) (rows * 1000L / Math.max(1L, SystemClock.elapsedRealtime() - start));
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(progress, rowsPerSecond);
+                    }
+                });
+            }
+            if (fullRefresh && rows > 0) {
+                removed = removeMissing(db, ids);
+            }
+        } finally {
+            insert.close();
+            if (changed) {
+                GpsEventBus.getInstance().postDatasetChanged(Const.CTRL_DATASET_VERSION_IMPORTED);
+            }
+        }
+
+        final int imported = rows;
+        final int removedRows = removed;
+        final long duration = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "importFeed: " + imported + " rows, " + removed + " removed in " + duration + " ms.");
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDone(imported, removedRows, duration);
+            }
+        });
+        return imported;
+    }
+
+    private static void bind(SQLiteStatement insert, String[] fields, BitSet ids) {
+        int id = Integer.parseInt(fields[0]);
+        ids.set(id);
+        insert.bindLong(1, id);
+        insert.bindDouble(2, Double.parseDouble(fields[1]));
+        insert.bindDouble(3, Double.parseDouble(fields[2]));
+        for (int i = 3; i < 8; i++) {
+            insert.bindLong(i + 1, fields[i].isEmpty() ? 0 : Integer.parseInt(fields[i]));
+        }
+        insert.bindString(9, fields[8]);
+    }
+
+    /**
+     * Splits a line at the semicolons, the last column takes the rest of the line.
+     *
+     * @return the number of fields
+     */
+    private static int split(String line, String[] fields) {
+        int count = 0;
+        int from = 0;
+        while (count < fields.length - 1) {
+            int to = line.indexOf(';', from);
+            if (to < 0) {
+                break;
+            }
+            fields[count++] = line.substring(from, to).trim();
+            from = to + 1;
+        }
+        fields[count++] = line.substring(from).trim();
+        return count;
+    }
+
+    /**
+     * Deletes the ctrls which weren't in the feed, in chunks like the import.
+     */
+    private static int removeMissing(SQLiteDatabase db, BitSet ids) {
+        BitSet missing = new BitSet();
+        Cursor cursor = db.rawQuery("SELECT id FROM " + DatabaseCtrls.TABLE_CTRLS, null);
+        try {
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+                if (!ids.get(id)) {
+                    missing.set(id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + DatabaseCtrls.TABLE_CTRLS + " WHERE id = ?");
+        int removed = 0;
+        try {
+            int id = missing.nextSetBit(0);
+            while (id >= 0) {
+                db.beginTransactionNonExclusive();
+                try {
+                    for (int chunk = 0; id >= 0 && chunk < CHUNK_SIZE; chunk++) {
+                        delete.bindLong(1, id);
+                        removed += delete.executeUpdateDelete();
+                        id = missing.nextSetBit(id + 1);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            delete.close();
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.utils;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes the bundled ctrl pack into the database on first launch. The pack is compiled from
+ * ctrls.db at build time (see the buildCtrlPack task and CtrlPackWriter for the format) and is a
+ * fraction of the size of the database.
+ * <p>
+ * The pack is streamed block by block, so only one block is held in memory no matter how large the
+ * data set grows. All blocks and the data set version are inserted in one transaction: if the pack
+ * turns out to be broken or the process is killed halfway, nothing is committed and the install
+ * simply runs again on the next launch, the table is never left with a partial data set.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlPackInstaller {
+
+    private static final String TAG = "CtrlPackInstaller";
+
+    private static final int MAGIC = 0x4B41504C;
+    private static final int FORMAT_VERSION = 1;
+    private static final double FIXED_POINT_SCALE = 1e6;
+
+    private final DatabaseCtrls mDatabaseCtrls;
+
+    private int[] mIds = new int[0];
+    private int[] mLatitudes = new int[0];
+    private int[] mLongitudes = new int[0];
+    private int[] mSpeeds = new int[0];
+    private int[] mTypes = new int[0];
+    private int[] mDescriptions = new int[0];
+    private final ArrayList<String> mDictionary = new ArrayList<>();
+    private byte[] mStringBuffer = new byte[64];
+
+    /**
+     * Instantiates a new installer.
+     *
+     * @param databaseCtrls the database
+     */
+    public CtrlPackInstaller(@NonNull DatabaseCtrls databaseCtrls) {
+        mDatabaseCtrls = databaseCtrls;
+    }
+
+    /**
+     * Installs the pack on the calling thread and sets the data set version of the database.
+     *
+     * @param in the gzipped pack, not closed
+     * @return the number of installed ctrls
+     * @throws IOException if the pack is invalid
+     */
+    public int install(@NonNull InputStream in) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), 64 * 1024));
+        if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+            throw new IOException("Invalid ctrl pack.");
+        }
+        int datasetVersion = data.readInt();
+        int count = data.readInt();
+
+        SQLiteDatabase db = mDatabaseCtrls.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + DatabaseCtrls.TABLE_CTRLS
+                + " (id, la, lo, ve, sp, ty, co, ne, st) VALUES (?, ?, ?, 0, ?, ?, 0, 0, ?)");
+        int rows = 0;
+        int lastId = 0, lastLat = 0, lastLng = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            while (rows < count) {
+                int size = readVarint(data);
+                if (size <= 0 || rows + size > count) {
+                    throw new IOException("Invalid ctrl pack block of " + size + " rows at " + rows + ".");
+                }
+                ensureCapacity(size);
+
+                for (int i = 0; i < size; i++) {
+                    lastId += unzigzag(readVarint(data));
+                    mIds[i] = lastId;
+                }
+                for (int i = 0; i < size; i++) {
+                    lastLat += unzigzag(readVarint(data));
+                    mLatitudes[i] = lastLat;
+                }
+                for (int i = 0; i < size; i++) {
+                    lastLng += unzigzag(readVarint(data));
+                    mLongitudes[i] = lastLng;
+                }
+                for (int i = 0; i < size; i++) {
+                    mSpeeds[i] = readVarint(data);
+                }
+                for (int i = 0; i < size; i++) {
+                    mTypes[i] = readVarint(data);
+                }
+                int appended = 0;
+                for (int i = 0; i < size; i++) {
+                    mDescriptions[i] = readVarint(data);
+                    if (mDescriptions[i] == mDictionary.size() + appended) {
+                        appended++;
+                    } else if (mDescriptions[i] > mDictionary.size() + appended) {
+                        throw new IOException("Invalid ctrl pack description " + mDescriptions[i] + " at " + (rows + i) + ".");
+                    }
+                }
+                for (int i = 0; i < appended; i++) {
+                    mDictionary.add(readString(data));
+                }
+
+                for (int i = 0; i < size; i++) {
+                    insert.bindLong(1, mIds[i]);
+                    insert.bindDouble(2, mLatitudes[i] / FIXED_POINT_SCALE);
+                    insert.bindDouble(3, mLongitudes[i] / FIXED_POINT_SCALE);
+                    insert.bindLong(4, mSpeeds[i]);
+                    insert.bindLong(5, mTypes[i]);
+                    insert.bindString(6, mDictionary.get(mDescriptions[i]));
+                    insert.executeInsert();
+                }
+                rows += size;
+            }
+            DatabaseCtrls.setDatasetVersion(db, datasetVersion);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+
+        Log.i(TAG, "install: " + rows + " ctrls, " + mDictionary.size() + " descriptions, data set "
+                + datasetVersion + " in " + (SystemClock.elapsedRealtime() - start) + " ms.");
+        return rows;
+    }
+
+    private void ensureCapacity(int size) {
+        if (mIds.length < size) {
+            mIds = new int[size];
+            mLatitudes = new int[size];
+            mLongitudes = new int[size];
+            mSpeeds = new int[size];
+            mTypes = new int[size];
+            mDescriptions = new int[size];
+        }
+    }
+
+    private String readString(DataInputStream data) throws IOException {
+        int length = readVarint(data);
+        if (mStringBuffer.length < length) {
+            mStringBuffer = new byte[Math.max(length, mStringBuffer.length * 2)];
+        }
+        data.readFully(mStringBuffer, 0, length);
+        return new String(mStringBuffer, 0, length, "UTF-8");
+    }
+
+    private static int readVarint(DataInputStream data) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = data.read();
+            if (b < 0) {
+                throw new EOFException("Truncated ctrl pack.");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in ctrl pack.");
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
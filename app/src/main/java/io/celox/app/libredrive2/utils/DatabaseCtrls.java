@@ -16,77 +16,203 @@
 
 package io.celox.app.libredrive2.utils;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import com.google.android.gms.maps.model.LatLng;
-import com.readystatesoftware.sqliteasset.SQLiteAssetHelper;
 
-import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
+import io.celox.app.libredrive2.index.CtrlStore;
 import io.celox.app.libredrive2.model.Ctrl;
 
 /**
- * The type Database ctrls.
+ * The ctrls database. There is one instance per process, see {@link #getInstance(Context)}, which
+ * is shared by the service, the activity and the map. The database runs in WAL mode, so the
+ * imports don't block the readers, and all queries use bind arguments, so their compiled
+ * statements are reused from the statement cache of the connection.
  *
  * @author Martin Pfeffer <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
  * @see <a href="https://celox.io">https://celox.io</a>
  */
-public class DatabaseCtrls extends SQLiteAssetHelper {
+public class DatabaseCtrls extends SQLiteOpenHelper {
 
     @SuppressWarnings("unused")
     private static final String TAG = "DatabaseCtrls";
 
     private static final int MIN_LAT = 0, MIN_LNG = 1, MAX_LAT = 2, MAX_LNG = 3;
 
-    private static final String TABLE_CTRLS = "ctrls";
+    /**
+     * Version 2 is the schema of the database which used to be shipped as an asset, everything
+     * above is migrated in {@link #onUpgrade}. New databases are filled by the
+     * {@link CtrlPackInstaller}.
+     * <ul>
+     * <li>3: R*Tree index on la/lo</li>
+     * <li>4: meta table holding the version of the data set</li>
+     * <li>5: covering index for the area queries, replaces the R*Tree</li>
+     * </ul>
+     */
+    private static final int DB_VERSION = 5;
+
+    static final String TABLE_CTRLS = "ctrls";
+    private static final String TABLE_META = "meta";
+    private static final String META_DATASET_VERSION = "dataset_version";
+
+    static final String INDEX_AREA = "ctrls_area";
+
+    /*
+     * The columns of the area queries, all of them are in INDEX_AREA (the id is the rowid), so the
+     * queries are answered from the index without touching the table.
+     */
+    private static final int COLUMN_ID = 0, COLUMN_LAT = 1, COLUMN_LNG = 2, COLUMN_SPEED = 3, COLUMN_TYPE = 4,
+            COLUMN_DESCRIPTION = 5;
+
+    /**
+     * The ctrls within a radius, closest first. The bounding box is searched in the index, the
+     * circle is checked on the squared equirectangular distance d (in degrees of latitude), which
+     * needs no trigonometry in SQL. With a limit SQLite only keeps the k best rows while sorting.
+     * <p>
+     * ?1 latitude, ?2 longitude, ?3 squared length of a degree of longitude in degrees of latitude,
+     * ?4 - ?7 the bounding box, ?8 the squared radius, ?9 the limit (-1 for none).
+     * <p>
+     * rawQuery binds every argument as text and d has no affinity, so d would be compared with a
+     * text value, which SQLite always considers larger than any number. Hence the casts.
+     */
+    static final String QUERY_RADIUS = "SELECT id, la, lo, sp, ty, st,"
+            + " (la - CAST(?1 AS REAL)) * (la - CAST(?1 AS REAL))"
+            + " + (lo - CAST(?2 AS REAL)) * (lo - CAST(?2 AS REAL)) * CAST(?3 AS REAL) AS d FROM " + TABLE_CTRLS
+            + " WHERE la < CAST(?4 AS REAL) AND la > CAST(?5 AS REAL) AND lo < CAST(?6 AS REAL) AND lo > CAST(?7 AS REAL)"
+            + " AND d <= CAST(?8 AS REAL) ORDER BY d LIMIT CAST(?9 AS INTEGER)";
+
+    static final double DEG_LAT_KM = 110.574235;
+    static final double DEG_LNG_KM = 110.572833;
+
+    private static DatabaseCtrls sInstance;
 
     private Context mContext;
 
     /**
-     * Instantiates a new Database ctrls.
+     * Gets the instance, opened lazily on first use.
      *
      * @param context the context
+     * @return the instance
      */
-    public DatabaseCtrls(Context context) {
-        super(context, Const.DB_NAME, null, 1);
+    public static synchronized DatabaseCtrls getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DatabaseCtrls(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DatabaseCtrls(Context context) {
+        super(context, Const.DB_NAME, null, DB_VERSION);
         mContext = context;
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        Log.i(TAG, "onCreate: ");
+        db.execSQL("CREATE TABLE " + TABLE_CTRLS + " (id integer primary key autoincrement, la float, lo float,"
+                + " ve integer, sp integer, ty integer, co integer, ne integer, st VARCHAR(200))");
+        db.execSQL("CREATE TABLE " + TABLE_META + " (key TEXT PRIMARY KEY, value INTEGER)");
+        setDatasetVersion(db, Const.CTRL_DATASET_VERSION_BUNDLED);
+        createAreaIndex(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.i(TAG, "onUpgrade: " + oldVersion + " -> " + newVersion);
+
+        if (oldVersion < 4) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_META + " (key TEXT PRIMARY KEY, value INTEGER)");
+            setDatasetVersion(db, Const.CTRL_DATASET_VERSION_BUNDLED);
+        }
+        if (oldVersion < 5) {
+            // the R*Tree of version 3 had to look up every candidate in the table
+            db.execSQL("DROP TRIGGER IF EXISTS ctrls_rtree_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS ctrls_rtree_update");
+            db.execSQL("DROP TRIGGER IF EXISTS ctrls_rtree_delete");
+            try {
+                db.execSQL("DROP TABLE IF EXISTS ctrls_rtree");
+            } catch (SQLException e) {
+                Log.w(TAG, "onUpgrade: can't drop ctrls_rtree. " + e.getMessage());
+            }
+            createAreaIndex(db);
+        }
+    }
+
+    /**
+     * Creates the covering index of the area queries: the range on la is searched in the index,
+     * lo is filtered and all projected columns are read from the same index entries.
+     */
+    private static void createAreaIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_AREA + " ON " + TABLE_CTRLS + " (la, lo, sp, ty, st)");
+    }
+
+    /**
+     * Gets the version of the data set, set by the installed pack or a feed import and bumped by
+     * every applied delta.
+     *
+     * @return the data set version
+     */
+    public int getDatasetVersion() {
+        try {
+            return (int) DatabaseUtils.longForQuery(getReadableDatabase(),
+                    "SELECT value FROM " + TABLE_META + " WHERE key = ?", new String[]{META_DATASET_VERSION});
+        } catch (SQLException e) {
+            Log.w(TAG, "getDatasetVersion: " + e.getMessage());
+            return Const.CTRL_DATASET_VERSION_BUNDLED;
+        }
+    }
+
+    static void setDatasetVersion(SQLiteDatabase db, int datasetVersion) {
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_META + " (key, value) VALUES (?, ?)",
+                new Object[]{META_DATASET_VERSION, datasetVersion});
     }
 
     /**
-     * Gets close ctrls.
+     * Queries the ctrls within the radius, closest first, see {@link #QUERY_RADIUS}.
+     *
+     * @param limit the maximum number of rows, 0 for all
+     */
+    private Cursor queryRadius(double latitude, double longitude, int range, int limit) {
+        double[] area = getSearchArea(latitude, longitude, range);
+        double lngScale = DEG_LNG_KM * Math.cos(Math.toRadians(latitude)) / DEG_LAT_KM;
+        double radius = range / 1000.0 / DEG_LAT_KM;
+        return getReadableDatabase().rawQuery(QUERY_RADIUS, new String[]{
+                Double.toString(latitude), Double.toString(longitude), Double.toString(lngScale * lngScale),
+                Double.toString(area[MAX_LAT]), Double.toString(area[MIN_LAT]),
+                Double.toString(area[MAX_LNG]), Double.toString(area[MIN_LNG]),
+                Double.toString(radius * radius), Integer.toString(limit > 0 ? limit : -1)});
+    }
+
+    /**
+     * Gets the speed limit of the closest ctrl within the range.
      *
      * @param latitude  the latitude
      * @param longitude the longitude
      * @param range     the range
-     * @return the close ctrls
+     * @return the speed, -1 if there is no ctrl in range
      */
     public int getCloseCtrls(double latitude, double longitude, int range) {
         if (mContext == null) {
             return -1;
         }
 
-        double area[] = getSearchArea(latitude, longitude, range);
-        String where = "la < " + area[MAX_LAT] + " AND la > " + area[MIN_LAT] + " AND lo < " + area[MAX_LNG] + " AND lo > " + area[MIN_LNG];
-
-        Cursor cursor = getReadableDatabase().rawQuery("SELECT * FROM " + TABLE_CTRLS + " WHERE " + where, null);
-        Log.i(TAG, "Warnings: " + cursor.getCount());
+        Cursor cursor = queryRadius(latitude, longitude, range, 1);
 
         if (cursor.getCount() > 0) {
             try {
                 cursor.moveToPosition(-1);
                 cursor.moveToNext();
-                return cursor.getInt(4);
+                return cursor.getInt(COLUMN_SPEED);
             } catch (Exception e) {
                 Log.e(TAG, "isCloseToCtrl: " + e.getMessage());
                 return -1;
@@ -98,30 +224,27 @@ public class DatabaseCtrls extends SQLiteAssetHelper {
     }
 
     /**
-     * Gets ctrls in area.
+     * Gets the ctrls within the range, closest first.
      *
      * @param latitude  the latitude
      * @param longitude the longitude
      * @param range     the range
+     * @param limit     the maximum number of ctrls, 0 for all
      * @return the ctrls in area
      */
-    public List<Ctrl> getCtrlsInArea(double latitude, double longitude, int range) {
+    public List<Ctrl> getCtrlsInArea(double latitude, double longitude, int range, int limit) {
         List<Ctrl> ctrlList = new ArrayList<>();
 
-        double area[] = getSearchArea(latitude, longitude, range);
-        String where = "la < " + area[MAX_LAT] + " AND la > " + area[MIN_LAT] + " AND lo <" + area[MAX_LNG] + " AND lo >" + area[MIN_LNG];
-
-        Log.i(TAG, "getCtrlsInArea: " + range);
-
-        Cursor cursor = getReadableDatabase().rawQuery("SELECT * FROM " + TABLE_CTRLS + " WHERE " + where, null);
-        Log.i(TAG, "Warnings: " + cursor.getCount());
+        Cursor cursor = queryRadius(latitude, longitude, range, limit);
+        Log.i(TAG, "getCtrlsInArea: " + cursor.getCount() + " within " + range + " m");
 
         if (cursor.getCount() > 0) {
             try {
                 cursor.moveToPosition(-1);
                 while (cursor.moveToNext()) {
-                    ctrlList.add(new Ctrl(new LatLng(cursor.getDouble(1), cursor.getDouble(2)),
-                            cursor.getInt(4), cursor.getString(8)));
+                    ctrlList.add(new Ctrl(cursor.getInt(COLUMN_ID),
+                            new LatLng(cursor.getDouble(COLUMN_LAT), cursor.getDouble(COLUMN_LNG)),
+                            cursor.getInt(COLUMN_SPEED), cursor.getString(COLUMN_DESCRIPTION)));
                 }
             } catch (Exception e) {
                 Log.e(TAG, "isCloseToCtrl: " + e.getMessage());
@@ -129,17 +252,63 @@ public class DatabaseCtrls extends SQLiteAssetHelper {
                 cursor.close();
             }
         }
-        Log.i(TAG, "getCtrlsInArea: " + ctrlList.toString());
-
         return ctrlList;
     }
 
+    /**
+     * Loads all ctrls into a {@link CtrlStore}, used to build the in-memory index.
+     *
+     * @return the store
+     */
+    public CtrlStore getCtrlStore() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT id, la, lo, sp, ty, st FROM " + TABLE_CTRLS, null);
+        CtrlStore store = new CtrlStore(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                store.add(cursor.getInt(COLUMN_ID), cursor.getDouble(COLUMN_LAT), cursor.getDouble(COLUMN_LNG),
+                        cursor.getInt(COLUMN_SPEED), cursor.getInt(COLUMN_TYPE), cursor.getString(COLUMN_DESCRIPTION));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getCtrlStore: " + e.getMessage());
+        } finally {
+            cursor.close();
+        }
+        Log.i(TAG, "getCtrlStore: " + store.size());
+
+        return store;
+    }
+
+    /**
+     * Loads the ctrls within the range into a {@link CtrlStore}, closest first.
+     *
+     * @param latitude  the latitude
+     * @param longitude the longitude
+     * @param range     the range
+     * @param limit     the maximum number of ctrls, 0 for all
+     * @return the store
+     */
+    public CtrlStore getCtrlStore(double latitude, double longitude, int range, int limit) {
+        Cursor cursor = queryRadius(latitude, longitude, range, limit);
+        CtrlStore store = new CtrlStore(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                store.add(cursor.getInt(COLUMN_ID), cursor.getDouble(COLUMN_LAT), cursor.getDouble(COLUMN_LNG),
+                        cursor.getInt(COLUMN_SPEED), cursor.getInt(COLUMN_TYPE), cursor.getString(COLUMN_DESCRIPTION));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getCtrlStore: " + e.getMessage());
+        } finally {
+            cursor.close();
+        }
+        return store;
+    }
+
     private double[] getSearchArea(final double latitude, final double longitude, final int distanceInMeters) {
         double[] area = new double[4];
         final double latRadian = Math.toRadians(latitude);
 
-        final double degLatKm = 110.574235;
-        final double degLngKm = 110.572833 * Math.cos(latRadian);
+        final double degLatKm = DEG_LAT_KM;
+        final double degLngKm = DEG_LNG_KM * Math.cos(latRadian);
         final double deltaLat = distanceInMeters / 1000.0 / degLatKm;
         final double deltaLong = distanceInMeters / 1000.0 / degLngKm;
 
@@ -163,9 +332,8 @@ public class DatabaseCtrls extends SQLiteAssetHelper {
      * @return the ctrl by id
      */
     public Cursor getCtrlById(int id) {
-        String where = "id = " + id + "";
         SQLiteDatabase db = getReadableDatabase();
-        return db.query(TABLE_CTRLS, null, where, null, null, null, null);
+        return db.query(TABLE_CTRLS, null, "id = ?", new String[]{Integer.toString(id)}, null, null, null);
     }
 
     /**
@@ -174,46 +342,6 @@ public class DatabaseCtrls extends SQLiteAssetHelper {
      * @return the ctrls count
      */
     public int getCtrlsCount() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_CTRLS, null, null, null, null, null, null);
-        int count = cursor.getCount();
-        cursor.close();
-        return count;
-    }
-
-    /**
-     * Insert ctrls.
-     *
-     * @param args the args
-     */
-    public void insertCtrls(final Iterable<HashMap<String, String>> args) {
-        final SQLiteDatabase db = getWritableDatabase();
-        db.beginTransaction();
-        //        db.delete(TABLE_CTRLS, null, null);
-
-        for (AbstractMap<String, String> qvs : args) {
-            ContentValues values = new ContentValues();
-            values.put("id", qvs.get("id"));
-            values.put("la", qvs.get("la"));
-            values.put("lo", qvs.get("lo"));
-            values.put("ve", qvs.get("ve"));
-            values.put("sp", qvs.get("sp"));
-            values.put("ty", qvs.get("ty"));
-            values.put("co", qvs.get("co"));
-            values.put("ne", qvs.get("ne"));
-            values.put("st", qvs.get("st"));
-            db.insert(TABLE_CTRLS, null, values);
-        }
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
-        db.close();
-    }
-
-    /**
-     * Aufgerufen, wenn Datenbank nicht mehr benötigt wird.
-     */
-    public void closeDatabase() {
-        close();
+        return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_CTRLS);
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.celox.app.libredrive2.utils;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.pepperonas.aespreferences.AesPrefs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Runs the slow parts of the app start in the background: the preference bookkeeping, copying and
+ * opening the ctrls database (the migrations after an update), counting the ctrls and installing
+ * the bundled ctrls on first launch. Listeners are called on the main thread once everything is ready.
+ * <p>
+ * Every phase is logged with its duration and the time since {@link #start}.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class StartupPipeline {
+
+    private static final String TAG = "StartupPipeline";
+
+    /**
+     * Called on the main thread once the startup is done.
+     */
+    public interface Listener {
+
+        void onStartupReady(@Nullable DatabaseCtrls databaseCtrls);
+    }
+
+    private static StartupPipeline sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> mListeners = new ArrayList<>();
+
+    private long mStartTime;
+    private boolean mStarted = false;
+    /* written on the startup thread before mReady */
+    private DatabaseCtrls mDatabaseCtrls;
+    private volatile boolean mReady = false;
+
+    /**
+     * Gets the instance.
+     *
+     * @return the instance
+     */
+    public static synchronized StartupPipeline getInstance() {
+        if (sInstance == null) {
+            sInstance = new StartupPipeline();
+        }
+        return sInstance;
+    }
+
+    private StartupPipeline() {
+    }
+
+    /**
+     * Starts the pipeline, does nothing if it is already running or done.
+     *
+     * @param context the context
+     */
+    public synchronized void start(@NonNull Context context) {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        mStartTime = SystemClock.elapsedRealtime();
+
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runPhases(appContext);
+            }
+        }, TAG).start();
+    }
+
+    private void runPhases(Context context) {
+        long phaseStart = SystemClock.elapsedRealtime();
+        try {
+            AesPrefs.initInstallationDate();
+            AesPrefs.initOrIncrementLaunchCounter();
+        } catch (Exception e) {
+            Log.e(TAG, "runPhases: prefs failed. " + e.getMessage());
+        }
+        phaseStart = logPhase("prefs", phaseStart);
+
+        DatabaseCtrls databaseCtrls = null;
+        try {
+            databaseCtrls = DatabaseCtrls.getInstance(context);
+            // creates the database on first launch and runs the migrations
+            databaseCtrls.getReadableDatabase();
+            phaseStart = logPhase("database", phaseStart);
+
+            int count = databaseCtrls.getCtrlsCount();
+            Log.i(TAG, "runPhases: " + count + " controls found in database.");
+            phaseStart = logPhase("count", phaseStart);
+
+            // the install is a single transaction, any ctrl means the whole pack is in
+            if (count == 0) {
+                installCtrlPack(context, databaseCtrls);
+                logPhase("install", phaseStart);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "runPhases: database failed. ", e);
+        }
+
+        mDatabaseCtrls = databaseCtrls;
+        mReady = true;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                logPhase("ready", mStartTime);
+                for (int i = mListeners.size() - 1; i >= 0; i--) {
+                    if (i < mListeners.size()) {
+                        mListeners.remove(i).onStartupReady(mDatabaseCtrls);
+                    }
+                }
+            }
+        });
+    }
+
+    private void installCtrlPack(Context context, DatabaseCtrls databaseCtrls) throws IOException {
+        InputStream in = context.getAssets().open(Const.CTRL_PACK_ASSET, AssetManager.ACCESS_STREAMING);
+        try {
+            new CtrlPackInstaller(databaseCtrls).install(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Calls the listener once the startup is done, right away if it is done already. Main thread
+     * only.
+     *
+     * @param listener the listener
+     */
+    public void whenReady(@NonNull Listener listener) {
+        if (mReady && mListeners.isEmpty()) {
+            listener.onStartupReady(mDatabaseCtrls);
+        } else if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes a listener which hasn't been called yet. Main thread only.
+     *
+     * @param listener the listener
+     */
+    public void remove(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Whether the startup is done.
+     *
+     * @return the ready state
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Gets the opened database, null until the startup is done or if opening failed.
+     *
+     * @return the database
+     */
+    @Nullable
+    public DatabaseCtrls getDatabaseCtrls() {
+        return mReady ? mDatabaseCtrls : null;
+    }
+
+    /**
+     * Logs the duration of a phase.
+     *
+     * @param phase      the name of the phase
+     * @param phaseStart the {@link SystemClock#elapsedRealtime()} the phase started at
+     * @return the time the phase ended at
+     */
+    public long logPhase(@NonNull String phase, long phaseStart) {
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, "logPhase: " + phase + " " + (now - phaseStart) + " ms (+" + (now - mStartTime) + " ms)");
+        return now;
+    }
+}
@@ -17,9 +17,6 @@
 package io.celox.app.libredrive2.utils;
 
 import android.content.Context;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import java.text.SimpleDateFormat;
@@ -42,10 +39,4 @@ public class Utils {
         SimpleDateFormat sdf = new SimpleDateFormat("yy.MM.dd.HH.mm.ss", Locale.GERMANY);
         return summary + "-" + sdf.format(date);
     }
-
-    public static void playNotification(@NonNull Context context) {
-        Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_NOTIFICATION);
-        Ringtone r = RingtoneManager.getRingtone(context, notification);
-        r.play();
-    }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.alert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the {@link AlertEngine} with synthetic fixes and checks the transitions it reports.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class AlertEngineTest {
+
+    private static final int[] BANDS = {500, 200, 70};
+    private static final long COOLDOWN = 60 * 1000L;
+
+    private final List<String> mEvents = new ArrayList<>();
+    private AlertEngine mAlertEngine;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mAlertEngine = new AlertEngine(BANDS, COOLDOWN, new AlertEngine.Listener() {
+            @Override
+            public void onAlert(int ctrlId, int band, int distance) {
+                mEvents.add("alert " + ctrlId + " " + band);
+            }
+
+            @Override
+            public void onPassed(int ctrlId) {
+                mEvents.add("passed " + ctrlId);
+            }
+        });
+        mNow = 1000L;
+    }
+
+    private void fix(Object... ctrls) {
+        int[] ids = new int[ctrls.length / 2];
+        double[] distances = new double[ctrls.length / 2];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (Integer) ctrls[2 * i];
+            distances[i] = ((Number) ctrls[2 * i + 1]).doubleValue();
+        }
+        mAlertEngine.update(mNow, ids, distances, ids.length);
+        mNow += 1000L;
+    }
+
+    private void assertEvents(String... events) {
+        assertEquals(Arrays.asList(events), mEvents);
+        mEvents.clear();
+    }
+
+    @Test
+    public void reportsEveryBandOnce() {
+        for (int distance = 800; distance >= 0; distance -= 10) {
+            fix(1, distance);
+        }
+        assertEvents("alert 1 0", "alert 1 1", "alert 1 2");
+        assertTrue(mAlertEngine.isAlerting());
+    }
+
+    @Test
+    public void jitterDoesNotRepeatABand() {
+        fix(1, 495);
+        fix(1, 505);
+        fix(1, 490);
+        fix(1, 510);
+        assertEvents("alert 1 0");
+    }
+
+    @Test
+    public void skippedBandsReportOnlyTheInnermost() {
+        fix(1, 600);
+        fix(1, 150);
+        fix(1, 120);
+        assertEvents("alert 1 1");
+    }
+
+    @Test
+    public void nearbyCtrlsAreTrackedIndependently() {
+        fix(1, 450, 2, 480);
+        assertEvents("alert 1 0", "alert 2 0");
+        // the closest one changes back and forth, neither starts over
+        fix(2, 430, 1, 440);
+        fix(1, 190, 2, 230);
+        fix(2, 180, 1, 185);
+        assertEvents("alert 1 1", "alert 2 1");
+    }
+
+    @Test
+    public void missingCtrlIsPassedAfterTheGrace() {
+        fix(1, 60);
+        assertEvents("alert 1 2");
+        for (int i = 1; i < AlertEngine.MAX_MISSES; i++) {
+            fix();
+        }
+        assertEvents();
+        assertTrue(mAlertEngine.isAlerting());
+        fix();
+        assertEvents("passed 1");
+        assertFalse(mAlertEngine.isAlerting());
+    }
+
+    @Test
+    public void singleMissDoesNotPass() {
+        fix(1, 300);
+        fix();
+        fix(1, 190);
+        assertEvents("alert 1 0", "alert 1 1");
+    }
+
+    @Test
+    public void ctrlMovingAwayIsPassed() {
+        fix(1, 100);
+        fix(1, 400);
+        fix(1, 500 + AlertEngine.PASSED_MARGIN_IN_METERS + 1);
+        assertEvents("alert 1 1", "passed 1");
+    }
+
+    @Test
+    public void passedCtrlCoolsDown() {
+        fix(1, 60);
+        for (int i = 0; i < AlertEngine.MAX_MISSES; i++) {
+            fix();
+        }
+        assertEvents("alert 1 2", "passed 1");
+
+        // back ahead within the cooldown, e.g. after turning around
+        fix(1, 50);
+        assertEvents();
+
+        mNow += COOLDOWN;
+        fix(1, 450);
+        assertEvents("alert 1 0");
+    }
+
+    @Test
+    public void cooledDownCtrlsAreForgotten() {
+        fix(1, 60);
+        for (int i = 0; i < AlertEngine.MAX_MISSES; i++) {
+            fix();
+        }
+        assertEquals(1, mAlertEngine.size());
+        mNow += COOLDOWN;
+        fix();
+        assertEquals(0, mAlertEngine.size());
+    }
+
+    @Test
+    public void ctrlsNeverWarnedAboutAreForgottenRightAway() {
+        fix(1, 3000, 2, 3500);
+        assertEquals(2, mAlertEngine.size());
+        fix(2, 3400);
+        assertEquals(1, mAlertEngine.size());
+        assertEvents();
+    }
+
+    @Test
+    public void predictionReportsBandsOnce() {
+        fix(1, 230);
+        mAlertEngine.predict(mNow, 1, 200);
+        fix(1, 180);
+        assertEvents("alert 1 0", "alert 1 1");
+        // unknown ctrls aren't predicted
+        mAlertEngine.predict(mNow, 2, 70);
+        assertEvents();
+    }
+
+    @Test
+    public void tableGrowsAndKeepsTheState() {
+        int count = 100;
+        Object[] ctrls = new Object[2 * count];
+        for (int i = 0; i < count; i++) {
+            ctrls[2 * i] = i * 7919;
+            ctrls[2 * i + 1] = 450;
+        }
+        fix(ctrls);
+        assertEquals(count, mAlertEngine.size());
+        assertEquals(count, mEvents.size());
+        mEvents.clear();
+        fix(ctrls);
+        assertEvents();
+    }
+}
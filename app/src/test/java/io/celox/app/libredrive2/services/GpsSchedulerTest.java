@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the {@link GpsScheduler} with synthetic fixes and checks the tiers it settles on.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class GpsSchedulerTest {
+
+    private static final int WARN_DISTANCE = 500;
+    private static final double LOOKAHEAD = 4000;
+
+    private GpsScheduler mGpsScheduler;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mGpsScheduler = new GpsScheduler(WARN_DISTANCE);
+        mNow = 0L;
+    }
+
+    @Test
+    public void highwayLoosensToSparse() {
+        cruiseUntilSparse();
+        assertEquals(GpsScheduler.TIER_SPARSE, mGpsScheduler.getTier());
+    }
+
+    @Test
+    public void fixesWithoutSpeedKeepTheSparseTier() {
+        cruiseUntilSparse();
+
+        // the balanced priority of the sparse tier mostly delivers fixes without a speed
+        for (int i = 0; i < 20; i++) {
+            mNow += 10000L;
+            assertFalse(mGpsScheduler.update(mNow, false, 0f, LOOKAHEAD));
+            assertEquals(GpsScheduler.TIER_SPARSE, mGpsScheduler.getTier());
+        }
+    }
+
+    @Test
+    public void fixesWithoutSpeedStillTightenCloseToACtrl() {
+        cruiseUntilSparse();
+
+        mNow += 10000L;
+        assertTrue(mGpsScheduler.update(mNow, false, 0f, 1000));
+        assertEquals(GpsScheduler.TIER_APPROACH, mGpsScheduler.getTier());
+    }
+
+    @Test
+    public void fixesWithoutAnySpeedKeepTheTier() {
+        for (int i = 0; i < 10; i++) {
+            mNow += 3000L;
+            assertFalse(mGpsScheduler.update(mNow, false, 0f, LOOKAHEAD));
+        }
+        assertEquals(GpsScheduler.TIER_APPROACH, mGpsScheduler.getTier());
+    }
+
+    /* 30 m/s with no ctrl in the lookahead, (4000 - 500) / 30 = 117 s to the warn distance */
+    private void cruiseUntilSparse() {
+        for (int i = 0; i < 10 && mGpsScheduler.getTier() != GpsScheduler.TIER_SPARSE; i++) {
+            mGpsScheduler.update(mNow, true, 30f, LOOKAHEAD);
+            mNow += 3000L;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.build;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the memory-mappable ctrl index, read at runtime by
+ * {@code io.celox.app.libredrive2.index.BinaryCtrlIndex}. All values are little endian.
+ * <pre>
+ * header      int magic, int format version, int data set version, int count,
+ *             int block size, int block count, int dictionary size, int reserved
+ * blocks      int minLat, int maxLat, int minLng, int maxLng   (per block of rows)
+ * latitudes   int[count]    degrees * 1e6
+ * longitudes  int[count]    degrees * 1e6
+ * ids         int[count]
+ * speeds      short[count]  km/h
+ * description short[count]  index into the dictionary (unsigned)
+ * types       byte[count]   padded to 4 bytes
+ * dictionary  int[size + 1] offsets into the UTF-8 bytes which follow
+ * </pre>
+ * Rows are sorted along a Hilbert curve, so the blocks are small boxes and a query only has to
+ * look into the blocks which intersect it.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlIndexWriter {
+
+    public static final int MAGIC = 0x5844494C; // "LIDX"
+    public static final int FORMAT_VERSION = 1;
+    public static final int BLOCK_SIZE = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the index.
+     *
+     * @param rows           the rows, already sorted by {@link CtrlRows#sortByHilbertCurve()}
+     * @param datasetVersion the version of the data set
+     * @param output         the index file
+     * @throws IOException if the file can't be written
+     */
+    public static void write(CtrlRows rows, int datasetVersion, File output) throws IOException {
+        int count = rows.size;
+        int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        List<String> dictionary = new ArrayList<>();
+        Map<String, Integer> dictionaryIndex = new HashMap<>();
+        int[] descriptions = new int[count];
+        for (int i = 0; i < count; i++) {
+            Integer index = dictionaryIndex.get(rows.descriptions[i]);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.add(rows.descriptions[i]);
+                dictionaryIndex.put(rows.descriptions[i], index);
+            }
+            descriptions[i] = index;
+        }
+        if (dictionary.size() > 0xFFFF) {
+            throw new IOException("Too many distinct descriptions: " + dictionary.size());
+        }
+
+        File parent = output.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+            writeInt(out, buffer, MAGIC);
+            writeInt(out, buffer, FORMAT_VERSION);
+            writeInt(out, buffer, datasetVersion);
+            writeInt(out, buffer, count);
+            writeInt(out, buffer, BLOCK_SIZE);
+            writeInt(out, buffer, blockCount);
+            writeInt(out, buffer, dictionary.size());
+            writeInt(out, buffer, 0);
+
+            for (int block = 0; block < blockCount; block++) {
+                int from = block * BLOCK_SIZE;
+                int to = Math.min(count, from + BLOCK_SIZE);
+                int minLat = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE;
+                int minLng = Integer.MAX_VALUE, maxLng = Integer.MIN_VALUE;
+                for (int i = from; i < to; i++) {
+                    minLat = Math.min(minLat, rows.latitudes[i]);
+                    maxLat = Math.max(maxLat, rows.latitudes[i]);
+                    minLng = Math.min(minLng, rows.longitudes[i]);
+                    maxLng = Math.max(maxLng, rows.longitudes[i]);
+                }
+                writeInt(out, buffer, minLat);
+                writeInt(out, buffer, maxLat);
+                writeInt(out, buffer, minLng);
+                writeInt(out, buffer, maxLng);
+            }
+
+            for (int i = 0; i < count; i++) {
+                writeInt(out, buffer, rows.latitudes[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                writeInt(out, buffer, rows.longitudes[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                writeInt(out, buffer, rows.ids[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                writeShort(out, buffer, rows.speeds[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                writeShort(out, buffer, descriptions[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeByte(rows.types[i]);
+            }
+            for (int i = count; i % 4 != 0; i++) {
+                out.writeByte(0);
+            }
+
+            List<byte[]> encoded = new ArrayList<>(dictionary.size());
+            int offset = 0;
+            writeInt(out, buffer, offset);
+            for (String description : dictionary) {
+                byte[] bytes = description.getBytes(UTF_8);
+                encoded.add(bytes);
+                offset += bytes.length;
+                writeInt(out, buffer, offset);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInt(DataOutputStream out, ByteBuffer buffer, int value) throws IOException {
+        buffer.clear();
+        buffer.putInt(value);
+        out.write(buffer.array(), 0, 4);
+    }
+
+    private static void writeShort(DataOutputStream out, ByteBuffer buffer, int value) throws IOException {
+        buffer.clear();
+        buffer.putShort((short) value);
+        out.write(buffer.array(), 0, 2);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.build;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.File;
+
+/**
+ * Compresses the bundled ctrls.db into the ctrl pack asset, see {@link CtrlPackWriter}.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlPackTask extends DefaultTask {
+
+    private File mDatabase;
+    private File mOutput;
+    private int mDatasetVersion = 1;
+
+    @InputFile
+    public File getDatabase() {
+        return mDatabase;
+    }
+
+    public void setDatabase(File database) {
+        mDatabase = database;
+    }
+
+    @OutputFile
+    public File getOutput() {
+        return mOutput;
+    }
+
+    public void setOutput(File output) {
+        mOutput = output;
+    }
+
+    @Input
+    public int getDatasetVersion() {
+        return mDatasetVersion;
+    }
+
+    public void setDatasetVersion(int datasetVersion) {
+        mDatasetVersion = datasetVersion;
+    }
+
+    @TaskAction
+    public void pack() {
+        try {
+            CtrlRows rows = CtrlRows.read(mDatabase);
+            rows.sortByHilbertCurve();
+            CtrlPackWriter.write(rows, mDatasetVersion, mOutput);
+            getLogger().lifecycle("ctrl pack: " + rows.size + " ctrls, " + mOutput.length() + " bytes");
+        } catch (Exception e) {
+            throw new GradleException("Can't pack ctrls from " + mDatabase, e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.build;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the compressed ctrl pack, the shipping format of the bundled data set. It is decoded
+ * once on first launch by {@code io.celox.app.libredrive2.utils.CtrlPackInstaller}.
+ * <pre>
+ * gzip of
+ * header      int magic, int format version, int data set version, int count   (big endian)
+ * blocks      of up to BLOCK_SIZE rows, every column of a block in a row:
+ *   varint      number of rows
+ *   ids         zigzag varint, delta to the previous row
+ *   latitudes   zigzag varint, delta to the previous row, degrees * 1e6
+ *   longitudes  zigzag varint, delta to the previous row, degrees * 1e6
+ *   speeds      varint km/h
+ *   types       varint
+ *   description varint index into the dictionary, the dictionary size appends the next string
+ *   strings     varint length and UTF-8 bytes of every appended description
+ * </pre>
+ * Rows are sorted along a Hilbert curve, so the deltas are small and neighbouring rows tend to
+ * share their road names. The deltas run on across blocks, the blocks only bound the memory
+ * needed to decode. The ve, co and ne columns are 0 throughout the data set and not stored.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlPackWriter {
+
+    public static final int MAGIC = 0x4B41504C; // "LPAK"
+    public static final int FORMAT_VERSION = 1;
+    public static final int BLOCK_SIZE = 4096;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the pack.
+     *
+     * @param rows           the rows, already sorted by {@link CtrlRows#sortByHilbertCurve()}
+     * @param datasetVersion the version of the data set
+     * @param output         the pack file
+     * @throws IOException if the file can't be written
+     */
+    public static void write(CtrlRows rows, int datasetVersion, File output) throws IOException {
+        File parent = output.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can't create " + parent);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(output), 64 * 1024) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(datasetVersion);
+            out.writeInt(rows.size);
+
+            Map<String, Integer> dictionary = new HashMap<>();
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            int lastId = 0, lastLat = 0, lastLng = 0;
+            for (int from = 0; from < rows.size; from += BLOCK_SIZE) {
+                int to = Math.min(rows.size, from + BLOCK_SIZE);
+                writeVarint(out, to - from);
+
+                for (int i = from; i < to; i++) {
+                    writeVarint(out, zigzag(rows.ids[i] - lastId));
+                    lastId = rows.ids[i];
+                }
+                for (int i = from; i < to; i++) {
+                    writeVarint(out, zigzag(rows.latitudes[i] - lastLat));
+                    lastLat = rows.latitudes[i];
+                }
+                for (int i = from; i < to; i++) {
+                    writeVarint(out, zigzag(rows.longitudes[i] - lastLng));
+                    lastLng = rows.longitudes[i];
+                }
+                for (int i = from; i < to; i++) {
+                    writeVarint(out, rows.speeds[i]);
+                }
+                for (int i = from; i < to; i++) {
+                    writeVarint(out, rows.types[i]);
+                }
+
+                strings.reset();
+                for (int i = from; i < to; i++) {
+                    Integer index = dictionary.get(rows.descriptions[i]);
+                    if (index == null) {
+                        index = dictionary.size();
+                        dictionary.put(rows.descriptions[i], index);
+                        byte[] bytes = rows.descriptions[i].getBytes(UTF_8);
+                        writeVarint(strings, bytes.length);
+                        strings.write(bytes);
+                    }
+                    writeVarint(out, index);
+                }
+                strings.writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
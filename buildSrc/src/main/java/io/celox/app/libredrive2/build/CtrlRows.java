@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019 Martin Pfeffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.celox.app.libredrive2.build;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * All rows of the ctrls table as parallel arrays. Coordinates are fixed point (degrees * 1e6),
+ * which is lossless for the bundled data set.
+ *
+ * @author Martin Pfeffer
+ * <a href="mailto:martin.pfeffer@celox.io">martin.pfeffer@celox.io</a>
+ * @see <a href="https://celox.io">https://celox.io</a>
+ */
+public class CtrlRows {
+
+    public static final double FIXED_POINT_SCALE = 1e6;
+
+    private static final int HILBERT_SIDE = 1 << 16;
+
+    public final int size;
+    public final int[] ids;
+    public final int[] latitudes;
+    public final int[] longitudes;
+    public final int[] speeds;
+    public final int[] types;
+    public final String[] descriptions;
+
+    private CtrlRows(int size) {
+        this.size = size;
+        this.ids = new int[size];
+        this.latitudes = new int[size];
+        this.longitudes = new int[size];
+        this.speeds = new int[size];
+        this.types = new int[size];
+        this.descriptions = new String[size];
+    }
+
+    /**
+     * Reads all ctrls from the given SQLite database.
+     *
+     * @param database the ctrls.db file
+     * @return the rows
+     * @throws SQLException if the database can't be read
+     */
+    public static CtrlRows read(File database) throws SQLException {
+        List<Object[]> rows = new ArrayList<>();
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database.getAbsolutePath());
+        try {
+            Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery("SELECT id, la, lo, sp, ty, st FROM ctrls"
+                    + " WHERE la IS NOT NULL AND lo IS NOT NULL");
+            while (resultSet.next()) {
+                rows.add(new Object[]{resultSet.getInt(1), resultSet.getDouble(2), resultSet.getDouble(3),
+                        resultSet.getInt(4), resultSet.getInt(5), resultSet.getString(6)});
+            }
+            resultSet.close();
+            statement.close();
+        } finally {
+            connection.close();
+        }
+
+        CtrlRows ctrlRows = new CtrlRows(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Object[] row = rows.get(i);
+            ctrlRows.ids[i] = (Integer) row[0];
+            ctrlRows.latitudes[i] = (int) Math.round((Double) row[1] * FIXED_POINT_SCALE);
+            ctrlRows.longitudes[i] = (int) Math.round((Double) row[2] * FIXED_POINT_SCALE);
+            ctrlRows.speeds[i] = (Integer) row[3];
+            ctrlRows.types[i] = (Integer) row[4];
+            ctrlRows.descriptions[i] = row[5] == null ? "" : (String) row[5];
+        }
+        return ctrlRows;
+    }
+
+    /**
+     * Sorts the rows along a Hilbert curve over the bounding box of the data set, so rows which
+     * are close on the map are close in the file.
+     */
+    public void sortByHilbertCurve() {
+        int minLat = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE;
+        int minLng = Integer.MAX_VALUE, maxLng = Integer.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            minLat = Math.min(minLat, latitudes[i]);
+            maxLat = Math.max(maxLat, latitudes[i]);
+            minLng = Math.min(minLng, longitudes[i]);
+            maxLng = Math.max(maxLng, longitudes[i]);
+        }
+        double latScale = HILBERT_SIDE / Math.max(1d, (double) maxLat - minLat + 1);
+        double lngScale = HILBERT_SIDE / Math.max(1d, (double) maxLng - minLng + 1);
+
+        final long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            int x = (int) ((longitudes[i] - (long) minLng) * lngScale);
+            int y = (int) ((latitudes[i] - (long) minLat) * latScale);
+            // hilbert index in the upper bits, original position in the lower bits; the index
+            // uses all 32 upper bits, flipping the sign bit makes the signed sort order them unsigned
+            keys[i] = ((hilbertIndex(x, y) << 32) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) (keys[i] & 0xFFFFFFFFL);
+        }
+        permute(ids, order);
+        permute(latitudes, order);
+        permute(longitudes, order);
+        permute(speeds, order);
+        permute(types, order);
+        String[] copy = descriptions.clone();
+        for (int i = 0; i < size; i++) {
+            descriptions[i] = copy[order[i]];
+        }
+    }
+
+    /**
+     * Maps a cell of the HILBERT_SIDE x HILBERT_SIDE grid to its distance along the Hilbert curve.
+     */
+    static long hilbertIndex(int x, int y) {
+        long d = 0;
+        for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_SIDE - 1 - x;
+                    y = HILBERT_SIDE - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    private static void permute(int[] values, int[] order) {
+        int[] copy = values.clone();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = copy[order[i]];
+        }
+    }
+}